@@ -2,13 +2,41 @@ package com.darren.download;
 
 import android.os.Build;
 
+import com.darren.download.file.BufferPool;
+import com.darren.download.net.DownloadTransport;
+import com.darren.download.net.HttpUrlConnectionTransport;
+import com.darren.download.thread.BandwidthLimiter;
+
 public class DownloadConfig {
     private int connectTimeout = 10000;
     private int readTimeout = 10000;
     private int allDownloadThreadNum = 9;
     private int eachDownloadThreadNum = 3;
     private int retryCount = 3;
+    private int maxQueueSize = 1000;
+    private long minSegmentSize = 1024*1024;
+    private boolean adaptiveThreadNum = false;
+    private int maxProbeNum = 4;
+    private boolean nioEngine = false;
+    private int nioSelectorNum = 2;
+    private int maxIdleConnectionsPerHost = 5;
+    private int maxConnectionsPerHost = 6;
+    private int writeBufferSize = 64*1024;
+    private long checkpointBytes = 1024*1024;
+    private long checkpointInterval = 1000;
+    private boolean mmapWrite = false;
+    private long mmapWindowSize = 16*1024*1024;
+    private boolean transferFromChannel = false;
+    private boolean writeBehind = false;
+    private int writeBehindQueueSize = 64;
+    private long blockHashSize = 1024*1024;
+    private long connectionKeepAliveTime = 30000;
+    private long dbCheckpointInterval = 2000;
+    private boolean journalDB = false;
     private String method = "GET";
+    private DownloadTransport transport = new HttpUrlConnectionTransport();
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
 
     public int getConnectTimeout() {
         return this.connectTimeout;
@@ -48,6 +76,156 @@ public class DownloadConfig {
         this.retryCount = getRetryCount;
     }
 
+    public int getMaxQueueSize() {
+        return this.maxQueueSize;
+    }
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public long getMinSegmentSize() {
+        return this.minSegmentSize;
+    }
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    public boolean isAdaptiveThreadNum() {
+        return this.adaptiveThreadNum;
+    }
+    public void setAdaptiveThreadNum(boolean adaptiveThreadNum) {
+        this.adaptiveThreadNum = adaptiveThreadNum;
+    }
+
+    public int getMaxProbeNum() {
+        return this.maxProbeNum;
+    }
+    public void setMaxProbeNum(int maxProbeNum) {
+        this.maxProbeNum = maxProbeNum;
+    }
+
+    public boolean isNioEngine() {
+        return this.nioEngine;
+    }
+    public void setNioEngine(boolean nioEngine) {
+        this.nioEngine = nioEngine;
+    }
+
+    public int getNioSelectorNum() {
+        return this.nioSelectorNum;
+    }
+    public void setNioSelectorNum(int nioSelectorNum) {
+        this.nioSelectorNum = nioSelectorNum;
+    }
+
+    public int getMaxIdleConnectionsPerHost() {
+        return this.maxIdleConnectionsPerHost;
+    }
+    public void setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return this.maxConnectionsPerHost;
+    }
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getWriteBufferSize() {
+        return this.writeBufferSize;
+    }
+    /**
+     * @param writeBufferSize 不能超过 BufferPool.MAX_BUFFER_SIZE，更大的缓冲区缓冲池也只能给出 MAX_BUFFER_SIZE
+     */
+    public void setWriteBufferSize(int writeBufferSize) {
+        checkWriteBufferSize(writeBufferSize);
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    private static void checkWriteBufferSize(int writeBufferSize) {
+        if (0 >= writeBufferSize || BufferPool.MAX_BUFFER_SIZE < writeBufferSize) {
+            throw new IllegalArgumentException("writeBufferSize must be in (0, " + BufferPool.MAX_BUFFER_SIZE + "]");
+        }
+    }
+
+    public long getCheckpointBytes() {
+        return this.checkpointBytes;
+    }
+    public void setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    public long getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public boolean isMmapWrite() {
+        return this.mmapWrite;
+    }
+    public void setMmapWrite(boolean mmapWrite) {
+        this.mmapWrite = mmapWrite;
+    }
+
+    public long getMmapWindowSize() {
+        return this.mmapWindowSize;
+    }
+    public void setMmapWindowSize(long mmapWindowSize) {
+        this.mmapWindowSize = mmapWindowSize;
+    }
+
+    public boolean isTransferFromChannel() {
+        return this.transferFromChannel;
+    }
+    public void setTransferFromChannel(boolean transferFromChannel) {
+        this.transferFromChannel = transferFromChannel;
+    }
+
+    public boolean isWriteBehind() {
+        return this.writeBehind;
+    }
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindQueueSize() {
+        return this.writeBehindQueueSize;
+    }
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public long getBlockHashSize() {
+        return this.blockHashSize;
+    }
+    public void setBlockHashSize(long blockHashSize) {
+        this.blockHashSize = blockHashSize;
+    }
+
+    public long getConnectionKeepAliveTime() {
+        return this.connectionKeepAliveTime;
+    }
+    public void setConnectionKeepAliveTime(long connectionKeepAliveTime) {
+        this.connectionKeepAliveTime = connectionKeepAliveTime;
+    }
+
+    public long getDbCheckpointInterval() {
+        return this.dbCheckpointInterval;
+    }
+    public void setDbCheckpointInterval(long dbCheckpointInterval) {
+        this.dbCheckpointInterval = dbCheckpointInterval;
+    }
+
+    public boolean isJournalDB() {
+        return this.journalDB;
+    }
+    public void setJournalDB(boolean journalDB) {
+        this.journalDB = journalDB;
+    }
+
     public String getMethod() {
         return this.method;
     }
@@ -55,6 +233,34 @@ public class DownloadConfig {
         this.method = method;
     }
 
+    /**
+     * 下载过程中可以通过它调整全局限速、单个任务限速和任务权重
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return this.bandwidthLimiter;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return this.bandwidthLimiter.getGlobalLimit();
+    }
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.bandwidthLimiter.setGlobalLimit(maxBytesPerSecond);
+    }
+
+    public DownloadTransport getTransport() {
+        return this.transport;
+    }
+    public void setTransport(DownloadTransport transport) {
+        this.transport = transport;
+    }
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     public static final class Builder {
 
         private int connectTimeout = -1;
@@ -62,7 +268,30 @@ public class DownloadConfig {
         private int retryCount = -1;
         private int allDownloadThreadNum = -1;
         private int eachDownloadThreadNum = -1;
+        private int maxQueueSize = -1;
+        private long minSegmentSize = -1;
+        private Boolean adaptiveThreadNum = null;
+        private int maxProbeNum = -1;
+        private Boolean nioEngine = null;
+        private int nioSelectorNum = -1;
+        private int maxIdleConnectionsPerHost = -1;
+        private int maxConnectionsPerHost = -1;
+        private int writeBufferSize = -1;
+        private long checkpointBytes = -1;
+        private long checkpointInterval = -1;
+        private Boolean mmapWrite = null;
+        private long mmapWindowSize = -1;
+        private Boolean transferFromChannel = null;
+        private Boolean writeBehind = null;
+        private int writeBehindQueueSize = -1;
+        private long blockHashSize = -1;
+        private long connectionKeepAliveTime = -1;
+        private long dbCheckpointInterval = -1;
+        private Boolean journalDB = null;
         private String method = null;
+        private DownloadTransport transport = null;
+        private BufferPool bufferPool = null;
+        private long maxBytesPerSecond = -1;
 
         public Builder setConnectTimeout(int connectTimeout) {
             this.connectTimeout = connectTimeout;
@@ -92,11 +321,145 @@ public class DownloadConfig {
             return this;
         }
 
+        public Builder setMaxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        public Builder setMinSegmentSize(long minSegmentSize) {
+            this.minSegmentSize = minSegmentSize;
+            return this;
+        }
+
+        /**
+         * 打开后每个任务从 1 个连接开始，根据吞吐量在 eachDownloadThreadNum 以内增减连接
+         */
+        public Builder setAdaptiveThreadNum(boolean adaptiveThreadNum) {
+            this.adaptiveThreadNum = adaptiveThreadNum;
+            return this;
+        }
+
+        public Builder setMaxProbeNum(int maxProbeNum) {
+            this.maxProbeNum = maxProbeNum;
+            return this;
+        }
+
+        /**
+         * 打开后 http 分段由少量 selector 线程以非阻塞方式下载，https 仍使用线程下载
+         */
+        public Builder setNioEngine(boolean nioEngine) {
+            this.nioEngine = nioEngine;
+            return this;
+        }
+
+        public Builder setNioSelectorNum(int nioSelectorNum) {
+            this.nioSelectorNum = nioSelectorNum;
+            return this;
+        }
+
+        public Builder setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+            this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+            return this;
+        }
+
+        public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        public Builder setWriteBufferSize(int writeBufferSize) {
+            checkWriteBufferSize(writeBufferSize);
+            this.writeBufferSize = writeBufferSize;
+            return this;
+        }
+
+        public Builder setCheckpointBytes(long checkpointBytes) {
+            this.checkpointBytes = checkpointBytes;
+            return this;
+        }
+
+        public Builder setCheckpointInterval(long checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        public Builder setMmapWrite(boolean mmapWrite) {
+            this.mmapWrite = mmapWrite;
+            return this;
+        }
+
+        public Builder setMmapWindowSize(long mmapWindowSize) {
+            this.mmapWindowSize = mmapWindowSize;
+            return this;
+        }
+
+        /**
+         * 只有传输层是 SocketChannelTransport 且地址是 http 时才生效，其他情况下退回到流式读取
+         */
+        public Builder setTransferFromChannel(boolean transferFromChannel) {
+            this.transferFromChannel = transferFromChannel;
+            return this;
+        }
+
+        public Builder setWriteBehind(boolean writeBehind) {
+            this.writeBehind = writeBehind;
+            return this;
+        }
+
+        public Builder setWriteBehindQueueSize(int writeBehindQueueSize) {
+            this.writeBehindQueueSize = writeBehindQueueSize;
+            return this;
+        }
+
+        public Builder setBlockHashSize(long blockHashSize) {
+            this.blockHashSize = blockHashSize;
+            return this;
+        }
+
+        public Builder setConnectionKeepAliveTime(long connectionKeepAliveTime) {
+            this.connectionKeepAliveTime = connectionKeepAliveTime;
+            return this;
+        }
+
+        /**
+         * 下载进度写入数据库的间隔，单位 ms，0 为只在暂停、完成和失败时写入
+         */
+        public Builder setDbCheckpointInterval(long dbCheckpointInterval) {
+            this.dbCheckpointInterval = dbCheckpointInterval;
+            return this;
+        }
+
+        /**
+         * 用只追加的日志文件代替 SQLite 保存任务和进度，适合进度更新非常频繁的场景
+         */
+        public Builder setJournalDB(boolean journalDB) {
+            this.journalDB = journalDB;
+            return this;
+        }
+
         public Builder setMethod(String method) {
             this.method = method;
             return this;
         }
 
+        /**
+         * 全局限速，单位 字节/秒，0 为不限速
+         */
+        public Builder setMaxBytesPerSecond(long maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        public Builder setTransport(DownloadTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder setBufferPool(BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
         public DownloadConfig build() {
             DownloadConfig downloadConfig = new DownloadConfig();
 
@@ -120,10 +483,102 @@ public class DownloadConfig {
                 downloadConfig.setEachDownloadThreadNum(eachDownloadThreadNum);
             }
 
+            if (-1 != maxQueueSize) {
+                downloadConfig.setMaxQueueSize(maxQueueSize);
+            }
+
+            if (-1 != minSegmentSize) {
+                downloadConfig.setMinSegmentSize(minSegmentSize);
+            }
+
+            if (null != adaptiveThreadNum) {
+                downloadConfig.setAdaptiveThreadNum(adaptiveThreadNum);
+            }
+
+            if (-1 != maxProbeNum) {
+                downloadConfig.setMaxProbeNum(maxProbeNum);
+            }
+
+            if (null != nioEngine) {
+                downloadConfig.setNioEngine(nioEngine);
+            }
+
+            if (-1 != nioSelectorNum) {
+                downloadConfig.setNioSelectorNum(nioSelectorNum);
+            }
+
+            if (-1 != maxIdleConnectionsPerHost) {
+                downloadConfig.setMaxIdleConnectionsPerHost(maxIdleConnectionsPerHost);
+            }
+
+            if (-1 != maxConnectionsPerHost) {
+                downloadConfig.setMaxConnectionsPerHost(maxConnectionsPerHost);
+            }
+
+            if (-1 != writeBufferSize) {
+                downloadConfig.setWriteBufferSize(writeBufferSize);
+            }
+
+            if (-1 != checkpointBytes) {
+                downloadConfig.setCheckpointBytes(checkpointBytes);
+            }
+
+            if (-1 != checkpointInterval) {
+                downloadConfig.setCheckpointInterval(checkpointInterval);
+            }
+
+            if (null != mmapWrite) {
+                downloadConfig.setMmapWrite(mmapWrite);
+            }
+
+            if (-1 != mmapWindowSize) {
+                downloadConfig.setMmapWindowSize(mmapWindowSize);
+            }
+
+            if (null != transferFromChannel) {
+                downloadConfig.setTransferFromChannel(transferFromChannel);
+            }
+
+            if (null != writeBehind) {
+                downloadConfig.setWriteBehind(writeBehind);
+            }
+
+            if (-1 != writeBehindQueueSize) {
+                downloadConfig.setWriteBehindQueueSize(writeBehindQueueSize);
+            }
+
+            if (-1 != blockHashSize) {
+                downloadConfig.setBlockHashSize(blockHashSize);
+            }
+
+            if (-1 != connectionKeepAliveTime) {
+                downloadConfig.setConnectionKeepAliveTime(connectionKeepAliveTime);
+            }
+
+            if (-1 != dbCheckpointInterval) {
+                downloadConfig.setDbCheckpointInterval(dbCheckpointInterval);
+            }
+
+            if (null != journalDB) {
+                downloadConfig.setJournalDB(journalDB);
+            }
+
             if (null != method) {
                 downloadConfig.setMethod(method);
             }
 
+            if (null != transport) {
+                downloadConfig.setTransport(transport);
+            }
+
+            if (null != bufferPool) {
+                downloadConfig.setBufferPool(bufferPool);
+            }
+
+            if (-1 != maxBytesPerSecond) {
+                downloadConfig.setMaxBytesPerSecond(maxBytesPerSecond);
+            }
+
             return downloadConfig;
         }
     }
@@ -1,15 +1,16 @@
 package com.darren.download;
 
+import com.darren.download.db.VerifiedDigestCache;
 import com.darren.download.exception.DownloadException;
 import com.darren.download.log.LogUtils;
+import com.darren.download.thread.SegmentScheduler;
 
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerInterface {
 
@@ -21,19 +22,26 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
         void onFailed(DownloadInfo downloadInfo, DownloadException exception);
     }
 
-    private LinkedBlockingQueue<DownloadInfo> blockingQueue;
+    private DownloadQueue downloadQueue;
     private ExecutorService executorService;
+    private SegmentScheduler segmentScheduler;
     private DownloadConfig config;
+    private VerifiedDigestCache verifiedDigestCache;
 
     private ConcurrentHashMap<String, DownloadTaskInterface> downloadTaskMap;
+    private Semaphore probeSemaphore;
     private Future<?> future;
     private Callback callback;
 
-    public DownloadConsumer(ExecutorService executorService, DownloadConfig config, LinkedBlockingQueue queue, Callback callback) {
+    public DownloadConsumer(ExecutorService executorService, SegmentScheduler segmentScheduler, DownloadConfig config, DownloadQueue queue,
+                            VerifiedDigestCache verifiedDigestCache, Callback callback) {
         this.config = config;
+        this.verifiedDigestCache = verifiedDigestCache;
         this.executorService = executorService;
-        this.blockingQueue = queue;
+        this.segmentScheduler = segmentScheduler;
+        this.downloadQueue = queue;
         this.downloadTaskMap = new ConcurrentHashMap<>();
+        this.probeSemaphore = new Semaphore(config.getMaxProbeNum());
         this.callback = callback;
 
         this.run();
@@ -46,9 +54,10 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
                 public void run() {
                     while (true) {
                         try {
-                            deal(blockingQueue.take());
+                            deal(downloadQueue.take());
                         } catch (InterruptedException e) {
                             e.printStackTrace();
+                            return;
                         }
                     }
                 }
@@ -56,7 +65,7 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
         }
     }
 
-    private void deal(DownloadInfo downloadInfo) {
+    private void deal(DownloadInfo downloadInfo) throws InterruptedException {
         if (downloadTaskMap.containsKey(downloadInfo.getTaskId())
             || DownloadStatus.STATUS_COMPLETED == downloadInfo.getStatus()
             || DownloadStatus.STATUS_REMOVE == downloadInfo.getStatus()
@@ -64,14 +73,49 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
             return;
         }
 
-        DownloadTaskInterface task = new DownloadTask(executorService, downloadInfo, config, this);
+        final DownloadTask task = new DownloadTask(executorService, segmentScheduler, downloadInfo, config, verifiedDigestCache, this);
         downloadTaskMap.put(downloadInfo.getTaskId(), task);
         downloadInfo.setStatus(DownloadStatus.STATUS_PREPARE_DOWNLOAD);
 
+        // 获取文件信息可能很慢，放到线程池中并发执行，同时执行的数量由 maxProbeNum 限制。
+        // 获取到文件信息后立即归还名额，校验已有文件和预分配不占用名额
+        probeSemaphore.acquire();
+        final Runnable releaseProbe = new Runnable() {
+            private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+            @Override
+            public void run() {
+                if (isReleased.compareAndSet(false, true)) {
+                    probeSemaphore.release();
+                }
+            }
+        };
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startTask(task, releaseProbe);
+                    } finally {
+                        releaseProbe.run();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseProbe.run();
+            throw e;
+        }
+    }
+
+    private void startTask(DownloadTask task, Runnable onProbed) {
+        DownloadInfo downloadInfo = task.getDownloadInfo();
         try {
-            int status = task.start();
+            int status = task.start(onProbed);
 
             if (DownloadStatus.STATUS_DOWNLOADING == status) {
+                if (task != downloadTaskMap.get(downloadInfo.getTaskId())) {
+                    return;
+                }
                 downloadInfo.setStatus(DownloadStatus.STATUS_DOWNLOADING);
                 if (null != callback) {
                     callback.onStart(downloadInfo);
@@ -85,34 +129,48 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
     }
 
     @Override
-    public void add(DownloadInfo downloadInfo) {
-        if (!blockingQueue.contains(downloadInfo) && !downloadTaskMap.containsKey(downloadInfo.getTaskId())) {
-            blockingQueue.offer(downloadInfo);
+    public boolean add(DownloadInfo downloadInfo) {
+        if (downloadTaskMap.containsKey(downloadInfo.getTaskId())) {
+            return true;
         }
+        return downloadQueue.offer(downloadInfo);
     }
 
     @Override
-    public void addList(List<DownloadInfo> downloadInfos) {
+    public boolean addList(List<DownloadInfo> downloadInfos) {
+        boolean isAllAdded = true;
         for (DownloadInfo downloadInfo : downloadInfos) {
-            add(downloadInfo);
+            if (!add(downloadInfo)) {
+                isAllAdded = false;
+            }
         }
+        return isAllAdded;
     }
 
     @Override
     public void pauseDownloadTask(DownloadInfo downloadInfo) {
-        if (blockingQueue.contains(downloadInfo)) {
-            blockingQueue.remove(downloadInfo);
-        } else {
+        if (!downloadQueue.remove(downloadInfo.getTaskId())) {
             removeDownloadTask(downloadInfo);
         }
         downloadInfo.setStatus(DownloadStatus.STATUS_PAUSED);
     }
 
     @Override
-    public void resumeDownloadTask(DownloadInfo downloadInfo) {
-        if (!blockingQueue.contains(downloadInfo) && !downloadTaskMap.containsKey(downloadInfo.getTaskId())) {
-            blockingQueue.add(downloadInfo);
-            downloadInfo.setStatus(DownloadStatus.STATUS_NONE);
+    public boolean resumeDownloadTask(DownloadInfo downloadInfo) {
+        if (downloadQueue.contains(downloadInfo.getTaskId()) || downloadTaskMap.containsKey(downloadInfo.getTaskId())) {
+            return true;
+        }
+        if (!downloadQueue.offer(downloadInfo)) {
+            return false;
+        }
+        downloadInfo.setStatus(DownloadStatus.STATUS_NONE);
+        return true;
+    }
+
+    @Override
+    public void setPriority(DownloadInfo downloadInfo, int priority) {
+        if (!downloadQueue.updatePriority(downloadInfo.getTaskId(), priority)) {
+            downloadInfo.setPriority(priority);
         }
     }
 
@@ -137,7 +195,7 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
             future.cancel(true);
         }
 
-        for (DownloadInfo info : blockingQueue) {
+        for (DownloadInfo info : downloadQueue.toList()) {
 
             LogUtils.logd("DownloadConsumer", "22 stop url: " + info.getUrl()
                     + ", size: " + info.getSize()
@@ -173,6 +231,7 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
     public synchronized void onSuccess(DownloadInfo downloadInfo) {
         downloadInfo.setStatus(DownloadStatus.STATUS_COMPLETED);
         removeDownloadTask(downloadInfo);
+        config.getBandwidthLimiter().removeTask(downloadInfo.getTaskId());
         if (null != callback) {
             callback.onSuccess(downloadInfo);
         }
@@ -184,8 +243,18 @@ public class DownloadConsumer implements DownloadTaskListener, DownloadConsumerI
         if (null != callback) {
             callback.onFailed(downloadInfo, exception);
         }
-        if (DownloadStatus.STATUS_RETRY == downloadInfo.getStatus()) {
-            this.add(downloadInfo);
+        boolean isRetry = DownloadStatus.STATUS_RETRY == downloadInfo.getStatus();
+        if (isRetry) {
+            // 重试的任务保留用户设置的限速和权重，只释放这一次下载的份额
+            config.getBandwidthLimiter().releaseTask(downloadInfo.getTaskId());
+            if (!this.add(downloadInfo)) {
+                LogUtils.logd("DownloadConsumer", "retry rejected, queue is full, url: " + downloadInfo.getUrl());
+                downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
+                isRetry = false;
+            }
+        }
+        if (!isRetry) {
+            config.getBandwidthLimiter().removeTask(downloadInfo.getTaskId());
         }
     }
 }
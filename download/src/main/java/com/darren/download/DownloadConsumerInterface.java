@@ -3,9 +3,10 @@ package com.darren.download;
 import java.util.List;
 
 public interface DownloadConsumerInterface {
-    void add(DownloadInfo downloadInfo);
-    void addList(List<DownloadInfo> downloadInfos);
+    boolean add(DownloadInfo downloadInfo);
+    boolean addList(List<DownloadInfo> downloadInfos);
     void pauseDownloadTask(DownloadInfo downloadInfo);
-    void resumeDownloadTask(DownloadInfo downloadInfo);
+    boolean resumeDownloadTask(DownloadInfo downloadInfo);
+    void setPriority(DownloadInfo downloadInfo, int priority);
     void stop();
 }
@@ -4,6 +4,8 @@ import android.os.Environment;
 import android.text.TextUtils;
 
 import com.darren.download.exception.DownloadException;
+import com.darren.download.file.BlockManifest;
+import com.darren.download.file.IntegrityAlgorithm;
 import com.darren.download.log.LogUtils;
 
 import java.util.HashMap;
@@ -20,9 +22,12 @@ public final class DownloadInfo {
     private long size;
     private long progress;
     private String fileMD5;
+    private String integrityAlgorithm = IntegrityAlgorithm.NAME_MD5;
     private int retryCount;
+    private int priority;
     private volatile int status;
     private long updateTime;
+    private BlockManifest blockManifest;
 
     private Map<String, DownloadThreadInfo> downloadThreadInfoList;
 
@@ -56,7 +61,7 @@ public final class DownloadInfo {
         return this.createAt;
     }
     public void setCreateAt(long createAt) {
-        this.progress = createAt;
+        this.createAt = createAt;
     }
 
     public int getForceInstall() {
@@ -94,6 +99,9 @@ public final class DownloadInfo {
         this.progress = progress;
     }
 
+    /**
+     * 期望的文件摘要，按 integrityAlgorithm 计算，名字沿用 md5
+     */
     public String getFileMD5() {
         return this.fileMD5;
     }
@@ -101,6 +109,13 @@ public final class DownloadInfo {
         this.fileMD5 = fileMD5;
     }
 
+    public String getIntegrityAlgorithm() {
+        return this.integrityAlgorithm;
+    }
+    public void setIntegrityAlgorithm(String integrityAlgorithm) {
+        this.integrityAlgorithm = integrityAlgorithm;
+    }
+
     public int getRetryCount() {
         return this.retryCount;
     }
@@ -108,6 +123,20 @@ public final class DownloadInfo {
         this.retryCount = retryCount;
     }
 
+    public int getPriority() {
+        return this.priority;
+    }
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public BlockManifest getBlockManifest() {
+        return this.blockManifest;
+    }
+    public void setBlockManifest(BlockManifest blockManifest) {
+        this.blockManifest = blockManifest;
+    }
+
     public synchronized int getStatus() {
         return this.status;
     }
@@ -160,10 +189,22 @@ public final class DownloadInfo {
          * 1为强制安装； 0为不强制安装
          */
         private int forceInstall = 0;
+        /*
+         * 数值越大越优先下载，同一优先级按加入顺序下载
+         */
+        private int priority = 0;
         private String packageName;
         private String url;
         private String savePath;
         private String fileMD5;
+        /*
+         * fileMD5 使用的摘要算法：md5、sha-256 或 crc32c
+         */
+        private String integrityAlgorithm = IntegrityAlgorithm.NAME_MD5;
+        /*
+         * 可选的分块 md5 清单，校验失败时只重新下载不一致的块
+         */
+        private BlockManifest blockManifest;
 
         public Builder setSupportRanges(int supportRanges) {
             this.supportRanges = supportRanges;
@@ -175,6 +216,11 @@ public final class DownloadInfo {
             return this;
         }
 
+        public Builder setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
         public Builder setUrl(String url) {
             this.url = url;
             return this;
@@ -190,6 +236,20 @@ public final class DownloadInfo {
             return this;
         }
 
+        /**
+         * 期望的文件摘要和计算它的算法
+         */
+        public Builder setIntegrity(String integrityAlgorithm, String digest) {
+            this.integrityAlgorithm = integrityAlgorithm;
+            this.fileMD5 = digest;
+            return this;
+        }
+
+        public Builder setBlockManifest(BlockManifest blockManifest) {
+            this.blockManifest = blockManifest;
+            return this;
+        }
+
         public Builder setPackageName(String packageName) {
             this.packageName = packageName;
             return this;
@@ -210,6 +270,7 @@ public final class DownloadInfo {
 
             downloadInfo.setSupportRanges(this.supportRanges);
             downloadInfo.setForceInstall(this.forceInstall);
+            downloadInfo.setPriority(this.priority);
             downloadInfo.setUrl(this.url);
             downloadInfo.setTaskId(this.packageName);
 
@@ -220,6 +281,13 @@ public final class DownloadInfo {
             }
 
             downloadInfo.setFileMD5(this.fileMD5);
+            try {
+                downloadInfo.setIntegrityAlgorithm(IntegrityAlgorithm.forName(this.integrityAlgorithm).getName());
+            } catch (IllegalArgumentException e) {
+                LogUtils.logd("DownloadInfo", e.getMessage());
+                throw new DownloadException(DownloadException.CODE_EXCEPTION_INIT_FAILED, e.getMessage());
+            }
+            downloadInfo.setBlockManifest(this.blockManifest);
 
             return downloadInfo;
         }
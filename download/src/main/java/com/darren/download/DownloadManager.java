@@ -8,5 +8,6 @@ public interface DownloadManager {
     void pause(DownloadInfo downloadInfo);
     void resume(DownloadInfo downloadInfo);
     void remove(DownloadInfo downloadInfo);
+    void setPriority(DownloadInfo downloadInfo, int priority);
     void destroy();
 }
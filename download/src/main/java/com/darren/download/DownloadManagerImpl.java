@@ -2,32 +2,57 @@ package com.darren.download;
 
 import android.content.Context;
 
+import com.darren.download.db.CheckpointWriter;
 import com.darren.download.db.DefaultDownloadController;
 import com.darren.download.db.DownloadDBController;
+import com.darren.download.db.JournalDownloadController;
+import com.darren.download.db.VerifiedDigestCache;
 import com.darren.download.exception.DownloadException;
+import com.darren.download.file.BlockManifest;
+import com.darren.download.file.IntegrityAlgorithm;
 import com.darren.download.log.LogUtils;
+import com.darren.download.net.ConnectionPool;
+import com.darren.download.nio.NioDownloadEngine;
+import com.darren.download.thread.SegmentScheduler;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Callback {
+    private static final int RESTORE_PAGE_SIZE = 50;
 
     private static DownloadManager instance;
     private ExecutorService executorService;
+    private SegmentScheduler segmentScheduler;
+    private NioDownloadEngine nioDownloadEngine;
+    private ConnectionPool connectionPool;
     private Context context;
     private DownloadConfig downloadConfig;
     private DownloadDBController downloadDBController;
+    private CheckpointWriter checkpointWriter;
+    private VerifiedDigestCache verifiedDigestCache;
     private ThreadFactory threadFactory;
     private DownloadListener initListener;
-    private boolean isReady = false;
+    private volatile boolean isReady = false;
+    private volatile boolean isRestoring = false;
+    private volatile boolean isDestroyed = false;
+    /*
+     * 恢复期间被调用方操作过的任务，恢复时跳过，由 restoreLock 保护
+     */
+    private final HashSet<String> touchedTaskIdSet = new HashSet<>();
+    private final Object restoreLock = new Object();
     private DownloadConsumerInterface downloadConsumer;
 
-    private LinkedBlockingQueue<DownloadInfo> blockingQueue;
+    private DownloadQueue downloadQueue;
 
     private DownloadManagerImpl() {
 
@@ -63,45 +88,207 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
             }
         };
 
-        this.blockingQueue = new LinkedBlockingQueue<>(50);
-
-//        executorService = Executors.newCachedThreadPool(threadFactory);
-        executorService = Executors.newFixedThreadPool(Integer.MAX_VALUE, threadFactory);
+        this.downloadQueue = new DownloadQueue(downloadConfig.getMaxQueueSize());
+
+        // 分段并发数由 segmentScheduler 控制，线程池只负责复用线程
+        executorService = Executors.newCachedThreadPool(threadFactory);
+        connectionPool = new ConnectionPool(downloadConfig.getMaxIdleConnectionsPerHost(), downloadConfig.getConnectionKeepAliveTime());
+        if (downloadConfig.isNioEngine()) {
+            try {
+                nioDownloadEngine = new NioDownloadEngine(downloadConfig.getNioSelectorNum(), connectionPool, executorService);
+            } catch (IOException e) {
+                e.printStackTrace();
+                LogUtils.logd("DownloadManagerImpl", "init NioDownloadEngine failed: " + e.getMessage());
+            }
+        }
+        segmentScheduler = new SegmentScheduler(executorService, nioDownloadEngine,
+                downloadConfig.getAllDownloadThreadNum(), downloadConfig.getMaxConnectionsPerHost());
 
-        downloadConsumer = new DownloadConsumer(executorService, downloadConfig, blockingQueue, this);
+        verifiedDigestCache = new VerifiedDigestCache();
+        downloadConsumer = new DownloadConsumer(executorService, segmentScheduler, downloadConfig, downloadQueue,
+                verifiedDigestCache, this);
 
         initDbData();
     }
 
+    /**
+     * 数据库打开后马上回调 onReady，之后按页恢复未完成的任务，
+     * 每一页的文件并行校验完再加入下载队列，恢复期间可以正常调用 start 等接口
+     */
     private void initDbData() {
-        executorService.submit(new Runnable() {
+        executorService.execute(new Runnable() {
             @Override
             public void run() {
-                downloadDBController = new DefaultDownloadController(context);
-                List<DownloadInfo> downloadInfoList = downloadDBController.getAllDownloading();
-
-                LogUtils.logd("DownloadManagerImpl", "initDbData size: " + downloadInfoList.size());
-                for (DownloadInfo downloadInfo : downloadInfoList) {
-                    LogUtils.logd("DownloadManagerImpl", "initDbData "
-                        + ", url: " + downloadInfo.getUrl()
-                        + ", status: " + downloadInfo.getStatus()
-                        + ", size: " + downloadInfo.getSize()
-                        + ", progress: " + downloadInfo.getProgress()
-                    );
-
-                    if (DownloadStatus.STATUS_COMPLETED != downloadInfo.getStatus()) {
-                        downloadConsumer.add(downloadInfo);
-                    }
-                }
+                downloadDBController = createDBController();
+                verifiedDigestCache.attach(downloadDBController);
+                checkpointWriter = new CheckpointWriter(downloadDBController, downloadConfig.getDbCheckpointInterval());
 
+                isRestoring = true;
+                isReady = true;
                 if (null != initListener) {
-                    isReady = true;
                     initListener.onReady();
                 }
+
+                try {
+                    restoreDbData();
+                } catch (RuntimeException e) {
+                    // 恢复过程中调用了 destroy，数据库已经关闭
+                    if (isDestroyed) {
+                        LogUtils.logd("DownloadManagerImpl", "initDbData stopped by destroy: " + e.getMessage());
+                        return;
+                    }
+                    LogUtils.logd("DownloadManagerImpl", "initDbData failed: " + e);
+                    throw e;
+                } finally {
+                    synchronized (restoreLock) {
+                        isRestoring = false;
+                        touchedTaskIdSet.clear();
+                    }
+                }
             }
         });
     }
 
+    private void restoreDbData() {
+        DownloadInfo lastDownloadInfo = null;
+        int count = 0;
+        while (true) {
+            DownloadDBController controller = downloadDBController;
+            if (isDestroyed || null == controller) {
+                return;
+            }
+
+            List<DownloadInfo> downloadInfoList = controller.getDownloading(lastDownloadInfo, RESTORE_PAGE_SIZE);
+            if (downloadInfoList.isEmpty()) {
+                break;
+            }
+            validateRestoredFiles(downloadInfoList);
+
+            for (DownloadInfo downloadInfo : downloadInfoList) {
+                LogUtils.logd("DownloadManagerImpl", "initDbData "
+                    + ", url: " + downloadInfo.getUrl()
+                    + ", status: " + downloadInfo.getStatus()
+                    + ", size: " + downloadInfo.getSize()
+                    + ", progress: " + downloadInfo.getProgress()
+                );
+
+                // 恢复之前已经被 start、pause 或 remove 过的任务以调用方为准，
+                // 检查和加入队列在同一个锁内，remove 不会插在两者之间
+                synchronized (restoreLock) {
+                    if (isDestroyed) {
+                        return;
+                    }
+                    if (!touchedTaskIdSet.add(downloadInfo.getTaskId())) {
+                        LogUtils.logd("DownloadManagerImpl", "initDbData skip touched task, url: " + downloadInfo.getUrl());
+                        continue;
+                    }
+
+                    if (DownloadStatus.STATUS_COMPLETED != downloadInfo.getStatus()
+                        && !downloadConsumer.add(downloadInfo)) {
+                        LogUtils.logd("DownloadManagerImpl", "initDbData queue is full, url: " + downloadInfo.getUrl());
+                        downloadInfo.setStatus(DownloadStatus.STATUS_PAUSED);
+                    }
+                }
+            }
+
+            count += downloadInfoList.size();
+            lastDownloadInfo = downloadInfoList.get(downloadInfoList.size() - 1);
+            if (RESTORE_PAGE_SIZE > downloadInfoList.size()) {
+                break;
+            }
+        }
+        LogUtils.logd("DownloadManagerImpl", "initDbData size: " + count);
+    }
+
+    /**
+     * 并行检查一页任务的文件：文件已经不存在的任务进度清零，可能已经下载完成的文件提前计算摘要并记入缓存，
+     * 任务开始时只需要 stat 一次
+     */
+    private void validateRestoredFiles(final List<DownloadInfo> downloadInfoList) {
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+        int workerNum = Math.min(downloadInfoList.size(), Math.max(1, Runtime.getRuntime().availableProcessors()));
+        List<Future<?>> futureList = new ArrayList<>();
+        for (int i = 0; i < workerNum; ++i) {
+            futureList.add(executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = nextIndex.getAndIncrement()) < downloadInfoList.size()) {
+                        validateRestoredFile(downloadInfoList.get(index));
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futureList) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void validateRestoredFile(DownloadInfo downloadInfo) {
+        File file = new File(downloadInfo.getSavePath());
+        if (!file.exists()) {
+            if (0 < downloadInfo.getProgress()) {
+                LogUtils.logd("DownloadManagerImpl", "restored file missing, url: " + downloadInfo.getUrl());
+                for (DownloadThreadInfo threadInfo : downloadInfo.getDownloadThreadInfoList().values()) {
+                    threadInfo.setProgress(0);
+                }
+                downloadInfo.setProgress(0);
+            }
+            return;
+        }
+
+        boolean mayBeCompleted = (0 < downloadInfo.getSize()) && (file.length() == downloadInfo.getSize())
+                && ((downloadInfo.getProgress() >= downloadInfo.getSize()) || downloadInfo.getDownloadThreadInfoList().isEmpty());
+        if (mayBeCompleted && null != downloadInfo.getFileMD5()) {
+            try {
+                verifiedDigestCache.verify(file, downloadInfo.getFileMD5(),
+                        IntegrityAlgorithm.forName(downloadInfo.getIntegrityAlgorithm()), downloadConfig.getBufferPool());
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 在操作队列之前调用，恢复线程正在加入同一个任务时等它加完
+     */
+    private void markTouched(DownloadInfo downloadInfo) {
+        if (isRestoring) {
+            synchronized (restoreLock) {
+                if (isRestoring) {
+                    touchedTaskIdSet.add(downloadInfo.getTaskId());
+                }
+            }
+        }
+    }
+
+    private DownloadDBController createDBController() {
+        if (downloadConfig.isJournalDB()) {
+            try {
+                return new JournalDownloadController(context);
+            } catch (IOException e) {
+                e.printStackTrace();
+                LogUtils.logd("DownloadManagerImpl", "open journal failed, use sqlite: " + e.getMessage());
+            }
+        }
+        return new DefaultDownloadController(context);
+    }
+
+    /**
+     * NioDownloadEngine 使用的连接池，DownloadConfig 中的传输层自己管理连接
+     */
+    public ConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
     private void checkReady() {
         if (!isReady) {
             throw new DownloadException(DownloadException.CODE_EXCEPTION_INIT_FAILED, "DownloadManager is not ready");
@@ -111,27 +298,36 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
     @Override
     public void start(DownloadInfo downloadInfo) {
         checkReady();
+        markTouched(downloadInfo);
 
         downloadInfo.setStatus(DownloadStatus.STATUS_NONE);
-        downloadConsumer.add(downloadInfo);
+        if (!downloadConsumer.add(downloadInfo)) {
+            downloadInfo.setStatus(DownloadStatus.STATUS_PAUSED);
+            throw new DownloadException(DownloadException.CODE_EXCEPTION_QUEUE_FULL, "download queue is full");
+        }
     }
 
     @Override
     public void pause(DownloadInfo downloadInfo) {
         checkReady();
+        markTouched(downloadInfo);
         downloadConsumer.pauseDownloadTask(downloadInfo);
     }
 
     @Override
     public void resume(DownloadInfo downloadInfo) {
         checkReady();
+        markTouched(downloadInfo);
 
-        downloadConsumer.resumeDownloadTask(downloadInfo);
+        if (!downloadConsumer.resumeDownloadTask(downloadInfo)) {
+            throw new DownloadException(DownloadException.CODE_EXCEPTION_QUEUE_FULL, "download queue is full");
+        }
     }
 
     @Override
     public void remove(DownloadInfo downloadInfo) {
         checkReady();
+        markTouched(downloadInfo);
 
         downloadInfo.setStatus(DownloadStatus.STATUS_REMOVE);
         downloadConsumer.pauseDownloadTask(downloadInfo);
@@ -142,13 +338,26 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
         if (file.exists()) {
             file.delete();
         }
-        downloadDBController.delete(downloadInfo);
+        BlockManifest.getSidecarFile(downloadInfo.getSavePath()).delete();
+        verifiedDigestCache.remove(downloadInfo.getSavePath());
+        checkpointWriter.delete(downloadInfo);
+        downloadConfig.getBandwidthLimiter().removeTask(downloadInfo.getTaskId());
 
         if (null != initListener) {
             initListener.onRemoved(downloadInfo);
         }
     }
 
+    /**
+     * 优先级随任务一起保存，下一次保存任务（进度、暂停、完成）时写入，重启后按保存的优先级排队
+     */
+    @Override
+    public void setPriority(DownloadInfo downloadInfo, int priority) {
+        checkReady();
+
+        downloadConsumer.setPriority(downloadInfo, priority);
+    }
+
     private void stopAll() {
         LogUtils.logd("DownloadManagerImpl", "stopAll");
         checkReady();
@@ -157,6 +366,9 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
 
     @Override
     public void destroy() {
+        synchronized (restoreLock) {
+            isDestroyed = true;
+        }
         this.stopAll();
 
         executorService.shutdown();
@@ -164,9 +376,20 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
             executorService.shutdown();
         }
 
+        if (null != nioDownloadEngine) {
+            nioDownloadEngine.shutdown();
+            nioDownloadEngine = null;
+        }
+        connectionPool.evictAll();
+
         threadFactory = null;
+        segmentScheduler = null;
+        // 先写入还没保存的进度再关闭数据库
+        checkpointWriter.close();
+        verifiedDigestCache.detach();
         downloadDBController.close();
         downloadDBController = null;
+        checkpointWriter = null;
 
         initListener = null;
         context = null;
@@ -189,7 +412,7 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
                 + ", status: " + downloadInfo.getStatus()
         );
 
-        downloadDBController.update(downloadInfo);
+        checkpointWriter.update(downloadInfo);
 
         if (null != initListener) {
             initListener.onPaused(downloadInfo);
@@ -198,6 +421,7 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
 
     @Override
     public void updateProgress(DownloadInfo downloadInfo) {
+        checkpointWriter.markDirty(downloadInfo);
         if (null != initListener) {
             initListener.updateDownloadInfo(downloadInfo);
         }
@@ -209,7 +433,7 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
             initListener.onDownloadSuccess(downloadInfo);
         }
 
-        downloadDBController.update(downloadInfo);
+        checkpointWriter.update(downloadInfo);
     }
 
     @Override
@@ -217,6 +441,6 @@ public class DownloadManagerImpl implements DownloadManager, DownloadConsumer.Ca
         if (null != initListener) {
             initListener.onDownloadFailed(downloadInfo, exception);
         }
-        downloadDBController.update(downloadInfo);
+        checkpointWriter.update(downloadInfo);
     }
 }
@@ -0,0 +1,117 @@
+package com.darren.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 按 taskId 建立索引的优先级队列：priority 越大越先出队，同一优先级内先进先出。
+ * 查询、删除、调整优先级都不需要遍历队列，队列满时 offer 返回 false 而不是丢弃任务。
+ */
+public class DownloadQueue {
+    private final int capacity;
+    private final TreeMap<Integer, LinkedHashMap<String, DownloadInfo>> priorityMap;
+    private final HashMap<String, Integer> indexMap;
+
+    public DownloadQueue(int capacity) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException("capacity must bigger than 0");
+        }
+        this.capacity = capacity;
+        this.priorityMap = new TreeMap<>(Collections.<Integer>reverseOrder());
+        this.indexMap = new HashMap<>();
+    }
+
+    public synchronized boolean offer(DownloadInfo downloadInfo) {
+        if (indexMap.containsKey(downloadInfo.getTaskId())) {
+            return true;
+        }
+        if (indexMap.size() >= capacity) {
+            return false;
+        }
+
+        enqueue(downloadInfo, downloadInfo.getPriority());
+        notifyAll();
+        return true;
+    }
+
+    public synchronized DownloadInfo take() throws InterruptedException {
+        while (indexMap.isEmpty()) {
+            wait();
+        }
+
+        Map.Entry<Integer, LinkedHashMap<String, DownloadInfo>> first = priorityMap.firstEntry();
+        Iterator<DownloadInfo> iterator = first.getValue().values().iterator();
+        DownloadInfo downloadInfo = iterator.next();
+        iterator.remove();
+        if (first.getValue().isEmpty()) {
+            priorityMap.remove(first.getKey());
+        }
+        indexMap.remove(downloadInfo.getTaskId());
+        return downloadInfo;
+    }
+
+    public synchronized boolean contains(String taskId) {
+        return indexMap.containsKey(taskId);
+    }
+
+    public synchronized boolean remove(String taskId) {
+        return null != dequeue(taskId);
+    }
+
+    public synchronized boolean updatePriority(String taskId, int priority) {
+        DownloadInfo downloadInfo = dequeue(taskId);
+        if (null == downloadInfo) {
+            return false;
+        }
+
+        downloadInfo.setPriority(priority);
+        enqueue(downloadInfo, priority);
+        return true;
+    }
+
+    public synchronized int size() {
+        return indexMap.size();
+    }
+
+    public synchronized int remainingCapacity() {
+        return capacity - indexMap.size();
+    }
+
+    public synchronized List<DownloadInfo> toList() {
+        List<DownloadInfo> list = new ArrayList<>(indexMap.size());
+        for (LinkedHashMap<String, DownloadInfo> bucket : priorityMap.values()) {
+            list.addAll(bucket.values());
+        }
+        return list;
+    }
+
+    private void enqueue(DownloadInfo downloadInfo, int priority) {
+        LinkedHashMap<String, DownloadInfo> bucket = priorityMap.get(priority);
+        if (null == bucket) {
+            bucket = new LinkedHashMap<>();
+            priorityMap.put(priority, bucket);
+        }
+        bucket.put(downloadInfo.getTaskId(), downloadInfo);
+        indexMap.put(downloadInfo.getTaskId(), priority);
+    }
+
+    private DownloadInfo dequeue(String taskId) {
+        Integer priority = indexMap.remove(taskId);
+        if (null == priority) {
+            return null;
+        }
+
+        LinkedHashMap<String, DownloadInfo> bucket = priorityMap.get(priority);
+        DownloadInfo downloadInfo = bucket.remove(taskId);
+        if (bucket.isEmpty()) {
+            priorityMap.remove(priority);
+        }
+        return downloadInfo;
+    }
+}
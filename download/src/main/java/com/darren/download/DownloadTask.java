@@ -1,42 +1,83 @@
 package com.darren.download;
 
+import com.darren.download.db.VerifiedDigestCache;
 import com.darren.download.exception.DownloadException;
+import com.darren.download.file.BlockManifest;
+import com.darren.download.file.FileAllocator;
 import com.darren.download.file.FileInfo;
-import com.darren.download.file.FileMd5;
+import com.darren.download.file.IntegrityAlgorithm;
 import com.darren.download.file.GetFileInfoTask;
+import com.darren.download.file.PrefixHasher;
+import com.darren.download.file.WriteBehindFileWriter;
 import com.darren.download.log.LogUtils;
+import com.darren.download.thread.ConnectionController;
 import com.darren.download.thread.DownloadThreadListener;
 import com.darren.download.thread.DownloadThreadRunnable;
+import com.darren.download.thread.SegmentScheduler;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DownloadTask implements DownloadTaskInterface, DownloadThreadListener {
+    private static final long HASH_STEP = 4*1024*1024;
+
     private ExecutorService executorService;
+    private SegmentScheduler segmentScheduler;
     private DownloadInfo downloadInfo;
     private DownloadConfig downloadConfig;
-    private HashMap<String, Future<Object>> futureList;
+    private ConcurrentHashMap<String, Future<Object>> futureList;
     private DownloadTaskListener downloadTaskListener;
+    private VerifiedDigestCache verifiedDigestCache;
+    private ConnectionController connectionController;
+    private String host;
+    private WriteBehindFileWriter writeBehindWriter;
+    private IntegrityAlgorithm integrityAlgorithm;
+    private volatile PrefixHasher prefixHasher;
+    private AtomicBoolean isHashing;
+    private int errorCount = 0;
+    private int repairCount = 0;
+    private boolean isStopped = false;
 
-    public DownloadTask(ExecutorService executorService, DownloadInfo downloadInfo, DownloadConfig config, DownloadTaskListener taskListener) {
+    public DownloadTask(ExecutorService executorService, SegmentScheduler segmentScheduler, DownloadInfo downloadInfo, DownloadConfig config,
+                        VerifiedDigestCache verifiedDigestCache, DownloadTaskListener taskListener) {
         this.executorService = executorService;
+        this.segmentScheduler = segmentScheduler;
         this.downloadInfo = downloadInfo;
         this.downloadConfig = config;
         this.downloadTaskListener = taskListener;
+        this.verifiedDigestCache = verifiedDigestCache;
+        this.host = SegmentScheduler.getHost(downloadInfo.getUrl());
+        try {
+            this.integrityAlgorithm = IntegrityAlgorithm.forName(downloadInfo.getIntegrityAlgorithm());
+        } catch (IllegalArgumentException e) {
+            // 降级后或数据损坏时可能读到不认识的算法，只让这个任务在 start 时失败
+            LogUtils.logd(DownloadTask.class.getSimpleName(), "url: " + downloadInfo.getUrl() + ", " + e.getMessage());
+        }
 
-        this.futureList = new HashMap<>();
+        this.futureList = new ConcurrentHashMap<>();
+        this.isHashing = new AtomicBoolean(false);
+        if (config.isWriteBehind()) {
+            this.writeBehindWriter = new WriteBehindFileWriter(downloadInfo.getSavePath(), config.getBufferPool(),
+                    config.getWriteBufferSize(), config.getWriteBehindQueueSize(), config.getCheckpointBytes(), config.getCheckpointInterval());
+        }
+        if (config.isAdaptiveThreadNum()) {
+            this.connectionController = new ConnectionController(config.getEachDownloadThreadNum());
+        }
     }
 
     @Override
-    public void stop() {
+    public synchronized void stop() {
+        isStopped = true;
         Iterator entrys = futureList.entrySet().iterator();
         while (entrys.hasNext()) {
             Map.Entry entry = (Map.Entry) entrys.next();
@@ -52,37 +93,48 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
 
     @Override
     public int start() throws DownloadException {
-        if (0>=downloadInfo.getSize()) {
-            try {
-                GetFileInfoTask task = new GetFileInfoTask(downloadInfo);
-                Future<FileInfo> future = executorService.submit(task);
-                FileInfo fileInfo = future.get();
-                if (null != fileInfo) {
-                    downloadInfo.setSupportRanges(fileInfo.getAcceptRanges() ? 1 : 0);
-                    downloadInfo.setSize(fileInfo.getLength());
-
-//                    LogUtils.logd(DownloadTask.class.getSimpleName(), "url: " + downloadInfo.getUrl() + ", supportRanges: " + fileInfo.getAcceptRanges() + ", size: " + fileInfo.getLength());
-                } else {
+        return start(null);
+    }
+
+    /**
+     * @param onProbed 获取文件信息结束后立即调用，之后校验已有文件、预分配等耗时的步骤不再占用获取文件信息的名额
+     */
+    public int start(Runnable onProbed) throws DownloadException {
+        try {
+            if (null == integrityAlgorithm) {
+                return onStartFailed(new DownloadException(DownloadException.CODE_EXCEPTION_INIT_FAILED,
+                        "unknown integrity algorithm: " + downloadInfo.getIntegrityAlgorithm()));
+            }
+
+            if (0>=downloadInfo.getSize()) {
+                try {
+                    // start() 已经运行在线程池中，这里直接同步获取文件信息
+                    GetFileInfoTask task = new GetFileInfoTask(downloadInfo, downloadConfig);
+                    FileInfo fileInfo = task.call();
+                    if (null != fileInfo) {
+                        downloadInfo.setSupportRanges(fileInfo.getAcceptRanges() ? 1 : 0);
+                        downloadInfo.setSize(fileInfo.getLength());
+
+//                        LogUtils.logd(DownloadTask.class.getSimpleName(), "url: " + downloadInfo.getUrl() + ", supportRanges: " + fileInfo.getAcceptRanges() + ", size: " + fileInfo.getLength());
+                    } else {
+                        downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
+                        if (null != downloadTaskListener) {
+                            downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_FILE_NULL, "file error"));
+                        }
+                        return DownloadStatus.STATUS_ERROR;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
                     downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
                     if (null != downloadTaskListener) {
-                        downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_FILE_NULL, "file error"));
+                        downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
                     }
                     return DownloadStatus.STATUS_ERROR;
                 }
-            } catch (ExecutionException e) {
-                e.printStackTrace();
-                downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
-                if (null != downloadTaskListener) {
-                    downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
-                }
-                return DownloadStatus.STATUS_ERROR;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
-                if (null != downloadTaskListener) {
-                    downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
-                }
-                return DownloadStatus.STATUS_ERROR;
+            }
+        } finally {
+            if (null != onProbed) {
+                onProbed.run();
             }
         }
 
@@ -98,79 +150,189 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
             throw new DownloadException(DownloadException.CODE_EXCEPTION_FILE_NULL, "file(" + downloadInfo.getUrl() + ") is null");
         } else {
             File file = new File(downloadInfo.getSavePath());
-            boolean reset = false;
-            if (0<downloadInfo.getProgress() && (!file.exists())) {
-                reset = true;
-            }
-
-            if (file.length() < downloadInfo.getProgress()) {
-                LogUtils.logd("DownloadTask", "start delete file length: " + file.length()
-                        + ", path: " + downloadInfo.getSavePath()
-                        + ", progress: " + downloadInfo.getProgress()
-                );
-                file.delete();
-                reset = true;
-            }
+            validateThreadInfoList(file);
 
-            if (reset) {
-                downloadInfo.setProgress(0);
-                Map<String, DownloadThreadInfo> map = downloadInfo.getDownloadThreadInfoList();
-                for (DownloadThreadInfo threadInfo : map.values()) {
-                    threadInfo.setProgress(0);
-                }
+            try {
+                FileAllocator.allocate(file, downloadInfo.getSize());
+            } catch (DownloadException e) {
+                return onStartFailed(e);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return onStartFailed(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
             }
 
+            prefixHasher = createPrefixHasher();
             download();
             return DownloadStatus.STATUS_DOWNLOADING;
         }
     }
 
-    private void download() {
+    private int onStartFailed(DownloadException exception) {
+        downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
+        if (null != downloadTaskListener) {
+            downloadTaskListener.onFailed(downloadInfo, exception);
+        }
+        return DownloadStatus.STATUS_ERROR;
+    }
+
+    /**
+     * 按记录的分段状态检查已下载的部分，只重置不可信的分段，不再整个文件重新下载。
+     * 崩溃后能否安全续传靠的是分段进度只在 force 之后更新，保存的进度就是已经落盘的位置。
+     * 文件长度的检查只对没有预分配过的文件有效（旧版本留下的文件或文件被外部截断），
+     * 预分配之后文件长度总是等于 size，不能用来判断进度。
+     */
+    private void validateThreadInfoList(File file) {
+        long fileLength = file.exists() ? file.length() : 0;
+        long progress = 0;
+        for (DownloadThreadInfo threadInfo : downloadInfo.getDownloadThreadInfoList().values()) {
+            long segmentLength = threadInfo.getEnd() - threadInfo.getStart() + 1;
+            long validProgress = Math.min(threadInfo.getProgress(), Math.max(0, fileLength - threadInfo.getStart()));
+            if (0 > threadInfo.getStart()) {
+                validProgress = 0;
+            }
+            validProgress = Math.min(validProgress, Math.max(0, segmentLength));
+            if (validProgress != threadInfo.getProgress()) {
+                LogUtils.logd(DownloadTask.class.getSimpleName(), "validateThreadInfoList thread: " + threadInfo.getThreadId()
+                        + ", progress: " + threadInfo.getProgress()
+                        + ", valid: " + validProgress
+                        + ", file length: " + fileLength);
+                threadInfo.setProgress(validProgress);
+            }
+            progress += validProgress;
+        }
+        downloadInfo.setProgress(progress);
+    }
+
+    private synchronized void download() {
+        if (isStopped) {
+            return;
+        }
+
+        Map<String, DownloadThreadInfo> threadInfoMap = downloadInfo.getDownloadThreadInfoList();
+        if (threadInfoMap.isEmpty() || (1 != downloadInfo.getSupportRanges())) {
+            initThreadInfoList();
+        }
+
+        for (DownloadThreadInfo threadInfo : threadInfoMap.values()) {
+            if (threadInfo.getEnd() >= downloadInfo.getSize()) {
+                threadInfo.setEnd(downloadInfo.getSize()-1);
+            }
+            if (0 < threadInfo.getRemaining()) {
+                submit(threadInfo);
+            }
+        }
+    }
+
+    private void initThreadInfoList() {
         long length = downloadInfo.getSize();
         long start = 0, end=0;
         final int threads;
         final long average;
         if (1 == downloadInfo.getSupportRanges()) {
-            threads = downloadConfig.getEachDownloadThreadNum();
+            threads = (null != connectionController) ? 1 : downloadConfig.getEachDownloadThreadNum();
             average = length/threads;
         } else {
             threads = 1;
-            average = length+1;
+            average = length;
         }
 
+        downloadInfo.getDownloadThreadInfoList().clear();
         for (int i=0; i<threads; ++i) {
             start = average*i;
             if (i == (threads-1)) {
-                end = length;
+                end = length-1;
             } else {
                 end = start + average - 1;
             }
 
-            String threadInfoId = downloadInfo.getSavePath()+"_"+(i+1);
-            long progress = 0;
-            if (0<downloadInfo.getDownloadThreadInfoList().size()
-                && downloadInfo.getDownloadThreadInfoList().containsKey(threadInfoId)) {
-                DownloadThreadInfo threadInfo = downloadInfo.getDownloadThreadInfoList().get(threadInfoId);
-                progress = threadInfo.getProgress();
-                if (null != futureList.get(threadInfoId)) {
-                    futureList.get(threadInfoId).cancel(true);
-                    futureList.remove(threadInfoId);
-                }
+//            LogUtils.logd(DownloadTask.class.getSimpleName(), "i: " + i + ", start: " + start + ", end: " + end);
+
+            DownloadThreadInfo threadInfo = new DownloadThreadInfo(downloadInfo.getTaskId(), createThreadInfoId(), downloadInfo.getUrl(), start, end);
+            downloadInfo.addDownloadThreadInfo(threadInfo);
+        }
+    }
+
+    private String createThreadInfoId() {
+        Map<String, DownloadThreadInfo> threadInfoMap = downloadInfo.getDownloadThreadInfoList();
+        int index = threadInfoMap.size()+1;
+        while (threadInfoMap.containsKey(downloadInfo.getSavePath()+"_"+index)) {
+            index++;
+        }
+        return downloadInfo.getSavePath()+"_"+index;
+    }
+
+    private void submit(DownloadThreadInfo threadInfo) {
+        Future<Object> future = futureList.remove(threadInfo.getThreadId());
+        if (null != future) {
+            future.cancel(true);
+        }
+
+        DownloadThreadRunnable runnable = new DownloadThreadRunnable(downloadInfo, threadInfo, downloadConfig, writeBehindWriter, this);
+        futureList.put(threadInfo.getThreadId(), segmentScheduler.submit(runnable));
+    }
+
+    /**
+     * 分段提前完成或需要增加连接时，优先恢复空闲的未完成分段，
+     * 否则从剩余最多的分段拆出后半段继续下载，保持连接数直到结束
+     */
+    private synchronized boolean stealSegment(String threadId) {
+        if (isStopped || downloadInfo.isPause() || (1 != downloadInfo.getSupportRanges())) {
+            return false;
+        }
+
+        DownloadThreadInfo victim = null;
+        for (DownloadThreadInfo threadInfo : downloadInfo.getDownloadThreadInfoList().values()) {
+            if (threadInfo.getThreadId().equals(threadId) || (0 >= threadInfo.getRemaining())) {
+                continue;
+            }
+            if (!futureList.containsKey(threadInfo.getThreadId())) {
+                submit(threadInfo);
+                return true;
+            }
+            if ((null == victim) || (threadInfo.getUnclaimed() > victim.getUnclaimed())) {
+                victim = threadInfo;
             }
+        }
+        if (null == victim) {
+            return false;
+        }
 
-//            LogUtils.logd(DownloadTask.class.getSimpleName(), "i: " + i + ", start: " + start + ", end: " + end + ", progress: " + progress);
+        DownloadThreadInfo stolen = victim.split(createThreadInfoId(), downloadConfig.getMinSegmentSize());
+        if (null == stolen) {
+            return false;
+        }
 
-            DownloadThreadInfo threadInfo = new DownloadThreadInfo(downloadInfo.getTaskId(), threadInfoId, downloadInfo.getUrl(), start, end);
-            threadInfo.setProgress(progress);
-            downloadInfo.addDownloadThreadInfo(threadInfo);
-            DownloadThreadRunnable runnable = new DownloadThreadRunnable(downloadInfo, threadInfo, downloadConfig, this);
-            futureList.put(threadInfoId, executorService.submit(runnable));
+        LogUtils.logd(DownloadTask.class.getSimpleName(), "stealSegment from: " + victim.getThreadId()
+                + ", to: " + stolen.getThreadId()
+                + ", start: " + stolen.getStart()
+                + ", end: " + stolen.getEnd());
+
+        downloadInfo.addDownloadThreadInfo(stolen);
+        submit(stolen);
+        return true;
+    }
+
+    private synchronized void adjustConnections() {
+        while ((futureList.size() < connectionController.getTargetConnections())
+                && segmentScheduler.hasIdleSlot(host)
+                && stealSegment(null)) {
+            LogUtils.logd(DownloadTask.class.getSimpleName(), "adjustConnections url: " + downloadInfo.getUrl()
+                    + ", connections: " + futureList.size()
+                    + ", throughput: " + connectionController.getLastThroughput());
         }
     }
 
+    /**
+     * 文件已经预分配，长度等于文件大小不代表已经下载完成，
+     * 只在记录的进度已经完成或者还没有任何分段记录时才计算整个文件的摘要，
+     * 上次校验之后没有变化的文件直接使用缓存的结果
+     */
     private boolean hasFileDownload(DownloadInfo downloadInfo) {
         File file1 = new File(downloadInfo.getSavePath());
-        if (file1.exists() && (FileMd5.getFileMD5(file1).equals(downloadInfo.getFileMD5()))) {
+        boolean mayBeCompleted = (downloadInfo.getProgress() >= downloadInfo.getSize())
+                || downloadInfo.getDownloadThreadInfoList().isEmpty();
+        if (file1.exists() && (file1.length() == downloadInfo.getSize()) && mayBeCompleted
+                && (null != downloadInfo.getFileMD5()) && isFileVerified(file1, downloadInfo.getFileMD5())) {
             if (null != downloadTaskListener) {
                 downloadTaskListener.onSuccess(downloadInfo);
             }
@@ -180,6 +342,206 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
         return false;
     }
 
+    private boolean isFileVerified(File file, String digest) {
+        if (null != verifiedDigestCache) {
+            return verifiedDigestCache.verify(file, digest, integrityAlgorithm, downloadConfig.getBufferPool());
+        }
+        return integrityAlgorithm.matches(digest, integrityAlgorithm.digestFile(file, downloadConfig.getBufferPool()));
+    }
+
+    private void onFileVerified(File file, String digest) {
+        if (null != verifiedDigestCache) {
+            verifiedDigestCache.put(file, digest);
+        }
+    }
+
+    private void deleteFile(File file) {
+        file.delete();
+        BlockManifest.getSidecarFile(downloadInfo.getSavePath()).delete();
+        if (null != verifiedDigestCache) {
+            verifiedDigestCache.remove(downloadInfo.getSavePath());
+        }
+    }
+
+    /**
+     * 优先使用任务提供的分块清单，其次是上次下载保存的清单，都没有时在本地计算
+     */
+    private PrefixHasher createPrefixHasher() {
+        final long size = downloadInfo.getSize();
+        File sidecarFile = BlockManifest.getSidecarFile(downloadInfo.getSavePath());
+        BlockManifest blockManifest = downloadInfo.getBlockManifest();
+        if (null != blockManifest
+                && blockManifest.getBlockCount() != BlockManifest.getBlockCount(blockManifest.getBlockSize(), size)) {
+            LogUtils.logd(DownloadTask.class.getSimpleName(), "block manifest does not match size: " + size + ", url: " + downloadInfo.getUrl());
+            blockManifest = null;
+        }
+
+        if (null != blockManifest) {
+            // 任务提供的清单没有保存在数据库中，保存到文件旁边供之后恢复使用
+            BlockManifest savedManifest = BlockManifest.load(sidecarFile, size);
+            if (null == savedManifest || !savedManifest.isSupplied()) {
+                saveBlockManifest(blockManifest, sidecarFile);
+            }
+        } else {
+            blockManifest = BlockManifest.load(sidecarFile, size);
+            if (null == blockManifest && 0 < downloadConfig.getBlockHashSize()) {
+                blockManifest = BlockManifest.createLocal(downloadConfig.getBlockHashSize(), size);
+            }
+        }
+        return new PrefixHasher(downloadInfo.getSavePath(), downloadConfig.getBufferPool(), integrityAlgorithm, blockManifest, size);
+    }
+
+    private void saveBlockManifest(BlockManifest blockManifest) {
+        // 任务提供的清单不会改变
+        if (null != blockManifest && !blockManifest.isSupplied()) {
+            saveBlockManifest(blockManifest, BlockManifest.getSidecarFile(downloadInfo.getSavePath()));
+        }
+    }
+
+    private void saveBlockManifest(BlockManifest blockManifest, File sidecarFile) {
+        try {
+            blockManifest.save(sidecarFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 校验失败时按分块清单只重新下载损坏的块
+     * @return 是否开始修复
+     */
+    private boolean repairBadBlocks() {
+        final PrefixHasher prefixHasher = this.prefixHasher;
+        if (null == prefixHasher || null == prefixHasher.getBlockManifest() || 1 != downloadInfo.getSupportRanges()) {
+            return false;
+        }
+        List<Integer> badBlockList = prefixHasher.getBadBlockList();
+        if (badBlockList.isEmpty() || (++repairCount > downloadConfig.getRetryCount())) {
+            return false;
+        }
+
+        BlockManifest blockManifest = prefixHasher.getBlockManifest();
+        for (int index : badBlockList) {
+            long start = blockManifest.getBlockStart(index);
+            long end = blockManifest.getBlockEnd(index, downloadInfo.getSize());
+            carveThreadInfo(start, end);
+            DownloadThreadInfo threadInfo = new DownloadThreadInfo(downloadInfo.getTaskId(), createThreadInfoId(), downloadInfo.getUrl(), start, end);
+            downloadInfo.addDownloadThreadInfo(threadInfo);
+
+            LogUtils.logd(DownloadTask.class.getSimpleName(), "repair block: " + index
+                    + ", start: " + start
+                    + ", end: " + end
+                    + ", path: " + downloadInfo.getSavePath());
+        }
+
+        long progress = 0;
+        for (DownloadThreadInfo threadInfo : downloadInfo.getDownloadThreadInfoList().values()) {
+            progress += threadInfo.getProgress();
+        }
+        downloadInfo.setProgress(progress);
+        prefixHasher.reset();
+        download();
+        return true;
+    }
+
+    /**
+     * 把 [start, end] 从已有的分段中去掉，保证各分段的进度之和仍然等于已下载的字节数
+     */
+    private void carveThreadInfo(long start, long end) {
+        List<DownloadThreadInfo> threadInfoList = new ArrayList<>(downloadInfo.getDownloadThreadInfoList().values());
+        for (DownloadThreadInfo threadInfo : threadInfoList) {
+            long threadStart = threadInfo.getStart();
+            long threadEnd = threadInfo.getEnd();
+            if (threadStart > end || threadEnd < start) {
+                continue;
+            }
+
+            long downloadedEnd = threadStart + threadInfo.getProgress() - 1;
+            if (threadStart < start) {
+                threadInfo.setEnd(start - 1);
+                threadInfo.setProgress(Math.min(threadInfo.getProgress(), start - threadStart));
+                if (threadEnd > end) {
+                    DownloadThreadInfo rightInfo = new DownloadThreadInfo(downloadInfo.getTaskId(), createThreadInfoId(), downloadInfo.getUrl(), end + 1, threadEnd);
+                    rightInfo.setProgress(Math.max(0, downloadedEnd - end));
+                    downloadInfo.addDownloadThreadInfo(rightInfo);
+                }
+            } else if (threadEnd > end) {
+                threadInfo.setStart(end + 1);
+                threadInfo.setProgress(Math.max(0, downloadedEnd - end));
+            } else {
+                // 整个分段都在损坏的块中，变成空分段
+                threadInfo.setStart(threadEnd + 1);
+                threadInfo.setProgress(0);
+            }
+        }
+    }
+
+    /**
+     * 下载过程中已经算好了前缀的摘要，这里只读剩下的部分
+     */
+    private String getFileDigest(File file) {
+        if (null == prefixHasher) {
+            return integrityAlgorithm.digestFile(file, downloadConfig.getBufferPool());
+        }
+        try {
+            return prefixHasher.finish(downloadInfo.getSize());
+        } catch (IOException e) {
+            e.printStackTrace();
+            prefixHasher.reset();
+            return integrityAlgorithm.digestFile(file, downloadConfig.getBufferPool());
+        }
+    }
+
+    /**
+     * @return 从文件开头起连续下载完成的长度
+     */
+    private long getContiguousProgress() {
+        List<DownloadThreadInfo> threadInfoList = new ArrayList<>(downloadInfo.getDownloadThreadInfoList().values());
+        Collections.sort(threadInfoList, new Comparator<DownloadThreadInfo>() {
+            @Override
+            public int compare(DownloadThreadInfo threadInfo1, DownloadThreadInfo threadInfo2) {
+                return Long.compare(threadInfo1.getStart(), threadInfo2.getStart());
+            }
+        });
+
+        long position = 0;
+        for (DownloadThreadInfo threadInfo : threadInfoList) {
+            if (threadInfo.getStart() != position) {
+                break;
+            }
+            position = threadInfo.getStart() + threadInfo.getProgress();
+            if (position <= threadInfo.getEnd()) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * 连续完成的前缀每增加 HASH_STEP 在线程池中增量计算一次摘要
+     */
+    private void scheduleHash() {
+        final PrefixHasher prefixHasher = this.prefixHasher;
+        if ((null == prefixHasher) || (HASH_STEP > (getContiguousProgress() - prefixHasher.getHashedPosition()))
+                || !isHashing.compareAndSet(false, true)) {
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefixHasher.update(getContiguousProgress());
+                    saveBlockManifest(prefixHasher.getBlockManifest());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    prefixHasher.reset();
+                } finally {
+                    isHashing.set(false);
+                }
+            }
+        });
+    }
+
     @Override
     public DownloadInfo getDownloadInfo() {
         return downloadInfo;
@@ -195,7 +557,11 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
             progressA += threadInfo.getProgress();
         }
         downloadInfo.setProgress(progressA);
+        if ((null != connectionController) && connectionController.onProgress(progressA)) {
+            adjustConnections();
+        }
         long currentTime = System.currentTimeMillis();
+        scheduleHash();
         if (((progressA == downloadInfo.getSize()) || (2000 <= (currentTime-downloadInfo.getUpdateTime()))) && (null != downloadTaskListener)) {
             downloadTaskListener.onUpdateProgress(downloadInfo);
             downloadInfo.setUpdateTime(currentTime);
@@ -206,7 +572,22 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
 
     @Override
     public void onDownloadSuccess(String threadId) {
+        futureList.remove(threadId);
+        boolean hasEnoughConnections = (null != connectionController)
+                && (futureList.size() >= connectionController.getTargetConnections());
+        if (!hasEnoughConnections && stealSegment(threadId)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (DownloadStatus.STATUS_COMPLETED == downloadInfo.getStatus()) {
+                return;
+            }
+            onTaskDownloadSuccess();
+        }
+    }
 
+    private void onTaskDownloadSuccess() {
         LogUtils.logd(DownloadTask.class.getSimpleName(), "onDownloadSuccess"
                 + ", url: " + downloadInfo.getUrl()
                 + ", progress: " + downloadInfo.getProgress()
@@ -214,17 +595,25 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
 
         if (downloadInfo.getProgress() == downloadInfo.getSize()) {
             File file = new File(downloadInfo.getSavePath());
-            if ((FileMd5.getFileMD5(file).equals(downloadInfo.getFileMD5()))) {
+            String digest = getFileDigest(file);
+            if (integrityAlgorithm.matches(downloadInfo.getFileMD5(), digest)) {
+                BlockManifest.getSidecarFile(downloadInfo.getSavePath()).delete();
+                onFileVerified(file, digest);
                 if (null != downloadTaskListener) {
                     downloadTaskListener.onSuccess(downloadInfo);
                 }
+            } else if (repairBadBlocks()) {
+                LogUtils.logd("DownloadTask", integrityAlgorithm + " err repair blocks: " + downloadInfo.getSavePath()
+                        + ", digest: " + digest
+                        + ", net digest: " + downloadInfo.getFileMD5()
+                );
             } else {
-                LogUtils.logd("DownloadTask", "11 md5 err remove delete: " + downloadInfo.getSavePath()
-                        + ", md5: " + FileMd5.getFileMD5(file)
-                        + ", net md5: " + downloadInfo.getFileMD5()
+                LogUtils.logd("DownloadTask", "11 " + integrityAlgorithm + " err remove delete: " + downloadInfo.getSavePath()
+                        + ", digest: " + digest
+                        + ", net digest: " + downloadInfo.getFileMD5()
                 );
                 downloadInfo.setStatus(DownloadStatus.STATUS_RETRY);
-                file.delete();
+                deleteFile(file);
                 if (null != downloadTaskListener) {
                     downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, "file has some wrong!"));
                 }
@@ -233,7 +622,7 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
             downloadInfo.setStatus(DownloadStatus.STATUS_RETRY);
             File file = new File(downloadInfo.getSavePath());
             LogUtils.logd("DownloadTask", "22 remove delete: " + downloadInfo.getSavePath());
-            file.delete();
+            deleteFile(file);
             if (null != downloadTaskListener) {
                 downloadTaskListener.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, "file has some wrong!"));
             }
@@ -242,6 +631,31 @@ public class DownloadTask implements DownloadTaskInterface, DownloadThreadListen
 
     @Override
     public void onDownloadFailed(String threadId, DownloadException exception) {
+        if (DownloadException.CODE_EXCEPTION_SERVER_BUSY == exception.getCode()) {
+            segmentScheduler.onHostBusy(host);
+            synchronized (this) {
+                futureList.remove(threadId);
+                if (null != connectionController) {
+                    connectionController.onError();
+                }
+                // 服务器限流时降低这个 host 的并发，出错的分段留给还在下载的连接接手
+                if (!futureList.isEmpty() && (++errorCount <= downloadConfig.getRetryCount())) {
+                    LogUtils.logd(DownloadTask.class.getSimpleName(), "onDownloadFailed server busy thread: " + threadId + ", " + exception);
+                    return;
+                }
+            }
+        } else if (null != connectionController) {
+            synchronized (this) {
+                futureList.remove(threadId);
+                connectionController.onError();
+                // 还有其他连接在下载时，出错的分段留给后续连接继续下载
+                if (!futureList.isEmpty() && (++errorCount <= downloadConfig.getRetryCount())) {
+                    LogUtils.logd(DownloadTask.class.getSimpleName(), "onDownloadFailed thread: " + threadId + ", " + exception);
+                    return;
+                }
+            }
+        }
+
         if (DownloadStatus.STATUS_COMPLETED != downloadInfo.getStatus()) {
             downloadInfo.setStatus(DownloadStatus.STATUS_ERROR);
         }
@@ -5,8 +5,12 @@ public final class DownloadThreadInfo {
     private String downloadInfoId;
     private String url;
     private long start;
-    private long end;
-    private long progress;
+    private volatile long end;
+    private volatile long progress;
+    /*
+     * 分段线程已经从网络读出、还没有 checkpoint 的位置，只在内存中，拆分时从这里开始
+     */
+    private long claimedPosition;
 
     public DownloadThreadInfo() {
 
@@ -61,4 +65,42 @@ public final class DownloadThreadInfo {
     public void setProgress(long progress) {
         this.progress = progress;
     }
+
+    public synchronized long getRemaining() {
+        return this.end - (this.start + this.progress) + 1;
+    }
+
+    /**
+     * 分段线程每次读取之前调用，登记 [position, position+length) 中还属于这个分段的部分，
+     * 拆分不会拆走已经登记的字节，分段线程也不会写到 end 之后
+     * @return 可以读取的字节数，0 表示已经到达 end
+     */
+    public synchronized long claim(long position, long length) {
+        long count = Math.max(0, Math.min(length, this.end - position + 1));
+        this.claimedPosition = position + count;
+        return count;
+    }
+
+    /**
+     * @return 还没有被分段线程读到的字节数
+     */
+    public synchronized long getUnclaimed() {
+        return this.end - Math.max(this.start + this.progress, this.claimedPosition) + 1;
+    }
+
+    /**
+     * 把还没有被分段线程读到的后半段拆出来交给新的分段，剩余不足 2*minSize 时返回 null
+     */
+    public synchronized DownloadThreadInfo split(String threadId, long minSize) {
+        long position = Math.max(this.start + this.progress, this.claimedPosition);
+        long remaining = this.end - position + 1;
+        if (remaining < 2*minSize) {
+            return null;
+        }
+
+        long middle = position + remaining/2;
+        DownloadThreadInfo threadInfo = new DownloadThreadInfo(this.downloadInfoId, threadId, this.url, middle, this.end);
+        this.end = middle - 1;
+        return threadInfo;
+    }
 }
@@ -0,0 +1,125 @@
+package com.darren.download.db;
+
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadStatus;
+import com.darren.download.log.LogUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载进度的批量写入：进度更新只把任务标记为脏，每隔 interval 在一个事务中写入所有脏任务。
+ * 暂停、完成、失败和删除仍然通过 update、delete 立即写入，并且会丢弃同一任务还没写入的旧进度。
+ */
+public class CheckpointWriter {
+    private final DownloadDBController dbController;
+    private final long interval;
+    private final LinkedHashMap<String, DownloadInfo> dirtyMap;
+    /*
+     * 写数据库时持有，标记脏任务只需要 this 锁，下载线程不用等待事务提交
+     */
+    private final Object writeLock = new Object();
+    private ScheduledExecutorService scheduledExecutor;
+    private boolean isClosed;
+
+    /**
+     * @param interval 单位 ms，0 为不定时写入，只在 update 和 flush 时写入
+     */
+    public CheckpointWriter(DownloadDBController dbController, long interval) {
+        this.dbController = dbController;
+        this.interval = interval;
+        this.dirtyMap = new LinkedHashMap<>();
+    }
+
+    public DownloadDBController getDBController() {
+        return this.dbController;
+    }
+
+    public synchronized void markDirty(DownloadInfo downloadInfo) {
+        if (isClosed || 0 >= interval || DownloadStatus.STATUS_REMOVE == downloadInfo.getStatus()) {
+            return;
+        }
+
+        dirtyMap.put(downloadInfo.getTaskId(), downloadInfo);
+        if (null == scheduledExecutor) {
+            scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CheckpointWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 立即写入这个任务
+     */
+    public void update(DownloadInfo downloadInfo) {
+        synchronized (writeLock) {
+            synchronized (this) {
+                dirtyMap.remove(downloadInfo.getTaskId());
+            }
+            dbController.update(downloadInfo);
+        }
+    }
+
+    /**
+     * 删除之后不会再被定时写入重新插入
+     */
+    public void delete(DownloadInfo downloadInfo) {
+        synchronized (writeLock) {
+            synchronized (this) {
+                dirtyMap.remove(downloadInfo.getTaskId());
+            }
+            dbController.delete(downloadInfo);
+        }
+    }
+
+    public void flush() {
+        synchronized (writeLock) {
+            List<DownloadInfo> downloadInfoList;
+            synchronized (this) {
+                if (dirtyMap.isEmpty()) {
+                    return;
+                }
+                downloadInfoList = new ArrayList<>(dirtyMap.values());
+                dirtyMap.clear();
+            }
+            try {
+                dbController.update(downloadInfoList);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                LogUtils.logd(CheckpointWriter.class.getSimpleName(), "flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 写入所有脏任务后停止定时写入，不关闭 dbController
+     */
+    public void close() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            isClosed = true;
+            executor = scheduledExecutor;
+            scheduledExecutor = null;
+        }
+        if (null != executor) {
+            executor.shutdown();
+        }
+        flush();
+    }
+}
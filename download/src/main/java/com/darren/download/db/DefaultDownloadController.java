@@ -3,6 +3,7 @@ package com.darren.download.db;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.ArrayMap;
 
 import com.darren.download.DownloadInfo;
@@ -11,16 +12,14 @@ import com.darren.download.DownloadThreadInfo;
 import com.darren.download.log.LogUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class DefaultDownloadController implements DownloadDBController {
 
     private static final String SQL_REPLACE_DOWNLOAD_INFO = String.format(
-        "REPLACE INTO %s (_id,supportRanges,forceInstall,createAt,url,path,size,progress,status, md5) VALUES(?,?,?,?,?,?,?,?,?,?);",
+        "REPLACE INTO %s (_id,supportRanges,forceInstall,createAt,url,path,size,progress,status, md5, integrityAlgorithm, priority) VALUES(?,?,?,?,?,?,?,?,?,?,?,?);",
             DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_INFO);
 
     private static final String SQL_REPLACE_DOWNLOAD_THREAD_INFO = String.format(
@@ -28,18 +27,44 @@ public class DefaultDownloadController implements DownloadDBController {
             DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_THREAD_INFO
     );
 
+    private static final String SQL_REPLACE_VERIFIED_DIGEST = String.format(
+        "REPLACE INTO %s (path, size, lastModified, verifiedAt, digest) VALUES(?, ?, ?, ?, ?);",
+            DefaultDownloadHelper.TABLE_NAME_VERIFIED_DIGEST
+    );
+
     private static final String[] DOWNLOAD_INFO_COLUMNS = new String[] {"_id", "supportRanges", "forceInstall",
             "createAt", "url", "path",
-            "size", "progress", "status", "md5"
+            "size", "progress", "status", "md5", "integrityAlgorithm", "priority"
     };
 
-    private static final String[] DOWNLOAD_THREAD_INFO_COLUMNS = new String[] {
-            "threadId", "downloadInfoId", "url", "start", "end", "progress"
+    private static final String SQL_QUERY_ALL_DOWNLOADING = String.format(
+        "SELECT i._id, i.supportRanges, i.forceInstall, i.createAt, i.url, i.path, i.size, i.progress, i.status, i.md5, i.integrityAlgorithm, i.priority," +
+                " t.threadId, t.downloadInfoId, t.url, t.start, t.end, t.progress" +
+                " FROM %s i LEFT JOIN %s t ON t.downloadInfoId = i._id WHERE i.status != ? ORDER BY i.createAt DESC, i._id;",
+            DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_INFO, DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_THREAD_INFO
+    );
+
+    /*
+     * 按 (createAt desc, _id) 从上一页的最后一个任务之后开始取，前面的任务被删除或者插入新任务时也不会重复或者遗漏
+     */
+    private static final String SQL_QUERY_DOWNLOADING_PAGE = String.format(
+        "SELECT i._id, i.supportRanges, i.forceInstall, i.createAt, i.url, i.path, i.size, i.progress, i.status, i.md5, i.integrityAlgorithm, i.priority," +
+                " t.threadId, t.downloadInfoId, t.url, t.start, t.end, t.progress" +
+                " FROM (SELECT * FROM %s WHERE status != ? AND (createAt < ? OR (createAt = ? AND _id > ?))" +
+                " ORDER BY createAt DESC, _id LIMIT ?) i" +
+                " LEFT JOIN %s t ON t.downloadInfoId = i._id ORDER BY i.createAt DESC, i._id;",
+            DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_INFO, DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_THREAD_INFO
+    );
+
+    private static final String[] VERIFIED_DIGEST_COLUMNS = new String[] {
+            "path", "size", "lastModified", "verifiedAt", "digest"
     };
 
     private final DefaultDownloadHelper dbHelper;
     private final SQLiteDatabase writableDatabase;
     private final SQLiteDatabase readableDatabase;
+    private SQLiteStatement replaceDownloadInfoStatement;
+    private SQLiteStatement replaceDownloadThreadInfoStatement;
 
     public DefaultDownloadController(Context context) {
         this.dbHelper = new DefaultDownloadHelper(context);
@@ -49,6 +74,14 @@ public class DefaultDownloadController implements DownloadDBController {
 
     @Override
     public synchronized void close() {
+        if (null != replaceDownloadInfoStatement) {
+            replaceDownloadInfoStatement.close();
+            replaceDownloadInfoStatement = null;
+        }
+        if (null != replaceDownloadThreadInfoStatement) {
+            replaceDownloadThreadInfoStatement.close();
+            replaceDownloadThreadInfoStatement = null;
+        }
         if (writableDatabase.isOpen()) {
             writableDatabase.close();
         }
@@ -59,23 +92,74 @@ public class DefaultDownloadController implements DownloadDBController {
 
     @Override
     public synchronized void update(DownloadInfo downloadInfo) {
-        writableDatabase.execSQL(
-                SQL_REPLACE_DOWNLOAD_INFO,
-                new Object[] {
-                        downloadInfo.getTaskId(), downloadInfo.getSupportRanges(),
-                        downloadInfo.getForceInstall(), downloadInfo.getCreateAt(),
-                        downloadInfo.getUrl(), downloadInfo.getSavePath(),
-                        downloadInfo.getSize(), downloadInfo.getProgress(),
-                        downloadInfo.getStatus(), downloadInfo.getFileMD5()
+        update(Collections.singletonList(downloadInfo));
+    }
+
+    /**
+     * 任务和各分段的进度在同一个事务中写入，语句编译一次后重复使用
+     */
+    @Override
+    public synchronized void update(List<DownloadInfo> downloadInfoList) {
+        writableDatabase.beginTransaction();
+        try {
+            for (DownloadInfo downloadInfo : downloadInfoList) {
+                SQLiteStatement statement = getReplaceDownloadInfoStatement();
+                statement.clearBindings();
+                bindString(statement, 1, downloadInfo.getTaskId());
+                statement.bindLong(2, downloadInfo.getSupportRanges());
+                statement.bindLong(3, downloadInfo.getForceInstall());
+                statement.bindLong(4, downloadInfo.getCreateAt());
+                bindString(statement, 5, downloadInfo.getUrl());
+                bindString(statement, 6, downloadInfo.getSavePath());
+                statement.bindLong(7, downloadInfo.getSize());
+                statement.bindLong(8, downloadInfo.getProgress());
+                statement.bindLong(9, downloadInfo.getStatus());
+                bindString(statement, 10, downloadInfo.getFileMD5());
+                bindString(statement, 11, downloadInfo.getIntegrityAlgorithm());
+                statement.bindLong(12, downloadInfo.getPriority());
+                statement.execute();
+
+                for (DownloadThreadInfo downloadThreadInfo : downloadInfo.getDownloadThreadInfoList().values()) {
+                    replaceDownloadThreadInfo(downloadThreadInfo);
                 }
-        );
+            }
+            writableDatabase.setTransactionSuccessful();
+        } finally {
+            writableDatabase.endTransaction();
+        }
+    }
 
-        ConcurrentHashMap<String, DownloadThreadInfo> threadInfoMap = (ConcurrentHashMap)downloadInfo.getDownloadThreadInfoList();
-        Iterator entrys = threadInfoMap.entrySet().iterator();
-        while (entrys.hasNext()) {
-            Map.Entry entry = (Map.Entry) entrys.next();
-            DownloadThreadInfo downloadThreadInfo = (DownloadThreadInfo) entry.getValue();
-            update(downloadThreadInfo);
+    private SQLiteStatement getReplaceDownloadInfoStatement() {
+        if (null == replaceDownloadInfoStatement) {
+            replaceDownloadInfoStatement = writableDatabase.compileStatement(SQL_REPLACE_DOWNLOAD_INFO);
+        }
+        return replaceDownloadInfoStatement;
+    }
+
+    private SQLiteStatement getReplaceDownloadThreadInfoStatement() {
+        if (null == replaceDownloadThreadInfoStatement) {
+            replaceDownloadThreadInfoStatement = writableDatabase.compileStatement(SQL_REPLACE_DOWNLOAD_THREAD_INFO);
+        }
+        return replaceDownloadThreadInfoStatement;
+    }
+
+    private void replaceDownloadThreadInfo(DownloadThreadInfo downloadThreadInfo) {
+        SQLiteStatement statement = getReplaceDownloadThreadInfoStatement();
+        statement.clearBindings();
+        bindString(statement, 1, downloadThreadInfo.getThreadId());
+        bindString(statement, 2, downloadThreadInfo.getDownloadInfoId());
+        bindString(statement, 3, downloadThreadInfo.getUrl());
+        statement.bindLong(4, downloadThreadInfo.getStart());
+        statement.bindLong(5, downloadThreadInfo.getEnd());
+        statement.bindLong(6, downloadThreadInfo.getProgress());
+        statement.execute();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (null == value) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
         }
     }
 
@@ -92,13 +176,7 @@ public class DefaultDownloadController implements DownloadDBController {
 
     @Override
     public synchronized void update(DownloadThreadInfo downloadThreadInfo) {
-        writableDatabase.execSQL(SQL_REPLACE_DOWNLOAD_THREAD_INFO,
-                new Object[] {
-                        downloadThreadInfo.getThreadId(), downloadThreadInfo.getDownloadInfoId(),
-                        downloadThreadInfo.getUrl(), downloadThreadInfo.getStart(),
-                        downloadThreadInfo.getEnd(), downloadThreadInfo.getProgress()
-                }
-        );
+        replaceDownloadThreadInfo(downloadThreadInfo);
     }
 
     @Override
@@ -133,46 +211,100 @@ public class DefaultDownloadController implements DownloadDBController {
         downloadInfo.setProgress(cursor.getLong(7));
         downloadInfo.setStatus(cursor.getInt(8));
         downloadInfo.setFileMD5(cursor.getString(9));
+        downloadInfo.setIntegrityAlgorithm(cursor.getString(10));
+        downloadInfo.setPriority(cursor.getInt(11));
     }
 
+    /**
+     * 任务和分段用一次 join 查出来，同一任务的行按 _id 排在一起
+     */
     @Override
     public synchronized List<DownloadInfo> getAllDownloading() {
-        Cursor cursor = readableDatabase.query(DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_INFO,
-                DOWNLOAD_INFO_COLUMNS, "status != ?",
-                new String[] {String.valueOf(DownloadStatus.STATUS_COMPLETED)},
-                null, null, "createAt desc"
-                );
+        return readDownloadInfoList(readableDatabase.rawQuery(SQL_QUERY_ALL_DOWNLOADING,
+                new String[] {String.valueOf(DownloadStatus.STATUS_COMPLETED)}
+                ));
+    }
 
+    @Override
+    public synchronized List<DownloadInfo> getDownloading(DownloadInfo after, int limit) {
+        String createAt = (null != after) ? String.valueOf(after.getCreateAt()) : String.valueOf(Long.MAX_VALUE);
+        String taskId = (null != after) ? after.getTaskId() : "";
+        return readDownloadInfoList(readableDatabase.rawQuery(SQL_QUERY_DOWNLOADING_PAGE,
+                new String[] {String.valueOf(DownloadStatus.STATUS_COMPLETED), createAt, createAt, taskId, String.valueOf(limit)}
+                ));
+    }
+
+    private List<DownloadInfo> readDownloadInfoList(Cursor cursor) {
         List<DownloadInfo> downloadInfoList = new ArrayList<>();
-        Cursor downloadThreadinfoCursor;
-        while (cursor.moveToNext()) {
-            DownloadInfo downloadInfo = new DownloadInfo();
-            inflateDownloadInfo(cursor, downloadInfo);
-            downloadInfoList.add(downloadInfo);
-
-            downloadThreadinfoCursor = readableDatabase.query(DefaultDownloadHelper.TABLE_NAME_DOWNLOAD_THREAD_INFO,
-                    DOWNLOAD_THREAD_INFO_COLUMNS, "downloadInfoId = ?",
-                    new String[] {String.valueOf(downloadInfo.getTaskId())},
-                    null, null, null
-                    );
-
-            while (downloadThreadinfoCursor.moveToNext()) {
-                DownloadThreadInfo threadInfo = new DownloadThreadInfo();
-                inflateDownloadThreadInfo(downloadThreadinfoCursor, threadInfo);
-                downloadInfo.addDownloadThreadInfo(threadInfo);
+        try {
+            DownloadInfo downloadInfo = null;
+            while (cursor.moveToNext()) {
+                if (null == downloadInfo || !downloadInfo.getTaskId().equals(cursor.getString(0))) {
+                    downloadInfo = new DownloadInfo();
+                    inflateDownloadInfo(cursor, downloadInfo);
+                    downloadInfoList.add(downloadInfo);
+                }
+
+                // 没有分段的任务 left join 出来的分段列为 null
+                if (!cursor.isNull(DOWNLOAD_INFO_COLUMNS.length)) {
+                    DownloadThreadInfo threadInfo = new DownloadThreadInfo();
+                    inflateDownloadThreadInfo(cursor, DOWNLOAD_INFO_COLUMNS.length, threadInfo);
+                    downloadInfo.addDownloadThreadInfo(threadInfo);
+                }
             }
+        } finally {
+            cursor.close();
         }
 
         return downloadInfoList;
     }
 
-    private void inflateDownloadThreadInfo(Cursor cursor, DownloadThreadInfo downloadThreadInfo) {
-        downloadThreadInfo.setThreadId(cursor.getString(0));
-        downloadThreadInfo.setDownloadInfoId(cursor.getString(1));
-        downloadThreadInfo.setUrl(cursor.getString(2));
-        downloadThreadInfo.setStart(cursor.getLong(3));
-        downloadThreadInfo.setEnd(cursor.getLong(4));
-        downloadThreadInfo.setProgress(cursor.getLong(5));
+    private void inflateDownloadThreadInfo(Cursor cursor, int offset, DownloadThreadInfo downloadThreadInfo) {
+        downloadThreadInfo.setThreadId(cursor.getString(offset));
+        downloadThreadInfo.setDownloadInfoId(cursor.getString(offset + 1));
+        downloadThreadInfo.setUrl(cursor.getString(offset + 2));
+        downloadThreadInfo.setStart(cursor.getLong(offset + 3));
+        downloadThreadInfo.setEnd(cursor.getLong(offset + 4));
+        downloadThreadInfo.setProgress(cursor.getLong(offset + 5));
     }
 
+    @Override
+    public synchronized void update(VerifiedDigest verifiedDigest) {
+        writableDatabase.execSQL(SQL_REPLACE_VERIFIED_DIGEST,
+                new Object[] {
+                        verifiedDigest.getPath(), verifiedDigest.getSize(),
+                        verifiedDigest.getLastModified(), verifiedDigest.getVerifiedAt(),
+                        verifiedDigest.getDigest()
+                }
+        );
+    }
+
+    @Override
+    public synchronized void deleteVerifiedDigest(String path) {
+        writableDatabase.delete(DefaultDownloadHelper.TABLE_NAME_VERIFIED_DIGEST, "path=?",
+                new String[] {path}
+        );
+    }
+
+    @Override
+    public synchronized VerifiedDigest getVerifiedDigest(String path) {
+        Cursor cursor = readableDatabase.query(DefaultDownloadHelper.TABLE_NAME_VERIFIED_DIGEST, VERIFIED_DIGEST_COLUMNS, "path=?",
+                new String[] {path}, null, null, null
+        );
+
+        try {
+            if (cursor.moveToNext()) {
+                VerifiedDigest verifiedDigest = new VerifiedDigest();
+                verifiedDigest.setPath(cursor.getString(0));
+                verifiedDigest.setSize(cursor.getLong(1));
+                verifiedDigest.setLastModified(cursor.getLong(2));
+                verifiedDigest.setVerifiedAt(cursor.getLong(3));
+                verifiedDigest.setDigest(cursor.getString(4));
+                return verifiedDigest;
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
 }
@@ -4,14 +4,12 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
-import com.darren.download.DownloadConfig;
-
 public final class DefaultDownloadHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "downloads.db";
-    private static final int DB_VERSION = 1;
 
     public static final String TABLE_NAME_DOWNLOAD_INFO = "download_info";
     public static final String TABLE_NAME_DOWNLOAD_THREAD_INFO = "download_thread_info";
+    public static final String TABLE_NAME_VERIFIED_DIGEST = "verified_digest";
 
     private static final String SQL_CREATE_DOWNLOAD_TABLE = String.format(
             "CREATE TABLE IF NOT EXISTS %s (_id varchar(255) PRIMARY KEY NOT NULL, supportRanges integer NOT NULL, forceInstall integer NOT NULL, createAt long NOT NULL, url varchar(255) NOT NULL," +
@@ -25,18 +23,73 @@ public final class DefaultDownloadHelper extends SQLiteOpenHelper {
             TABLE_NAME_DOWNLOAD_THREAD_INFO
     );
 
+    private static final String SQL_CREATE_VERIFIED_DIGEST_TABLE = String.format(
+            "CREATE TABLE IF NOT EXISTS %s (path varchar(255) PRIMARY KEY NOT NULL, size long NOT NULL," +
+                    "lastModified long NOT NULL, verifiedAt long NOT NULL, digest varchar(255) NOT NULL);",
+            TABLE_NAME_VERIFIED_DIGEST
+    );
+
+    private static final String SQL_ADD_INTEGRITY_ALGORITHM_COLUMN = String.format(
+            "ALTER TABLE %s ADD COLUMN integrityAlgorithm varchar(32) NOT NULL DEFAULT 'md5';",
+            TABLE_NAME_DOWNLOAD_INFO
+    );
+
+    private static final String SQL_ADD_PRIORITY_COLUMN = String.format(
+            "ALTER TABLE %s ADD COLUMN priority INTEGER NOT NULL DEFAULT 0;",
+            TABLE_NAME_DOWNLOAD_INFO
+    );
+
+    private static final String SQL_CREATE_DOWNLOAD_INFO_ID_INDEX = String.format(
+            "CREATE INDEX IF NOT EXISTS idx_thread_download_info_id ON %s (downloadInfoId);",
+            TABLE_NAME_DOWNLOAD_THREAD_INFO
+    );
+
+    private static final String SQL_CREATE_STATUS_INDEX = String.format(
+            "CREATE INDEX IF NOT EXISTS idx_download_status ON %s (status);",
+            TABLE_NAME_DOWNLOAD_INFO
+    );
+
+    /**
+     * MIGRATIONS[i] 把数据库从版本 i+1 升级到 i+2，修改表结构时在末尾追加一项，不要修改已经发布的项
+     */
+    private static final String[][] MIGRATIONS = new String[][] {
+            // 2: 已经校验过的文件摘要
+            {SQL_CREATE_VERIFIED_DIGEST_TABLE},
+            // 3: 校验算法
+            {SQL_ADD_INTEGRITY_ALGORITHM_COLUMN},
+            // 4: 按任务查分段、按状态查任务的索引
+            {SQL_CREATE_DOWNLOAD_INFO_ID_INDEX, SQL_CREATE_STATUS_INDEX},
+            // 5: 队列优先级，重启后按保存的优先级恢复
+            {SQL_ADD_PRIORITY_COLUMN},
+    };
+
+    private static final int DB_VERSION = MIGRATIONS.length + 1;
+
     public DefaultDownloadHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        // 读写不互相阻塞，提交时只追加 wal 文件
+        setWriteAheadLoggingEnabled(true);
     }
 
+    /**
+     * 先建版本 1 的表，再依次执行所有迁移，新安装和升级得到同样的表结构
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_DOWNLOAD_TABLE);
         db.execSQL(SQL_CREATE_DOWNLOAD_THREAD_TABLE);
+        onUpgrade(db, 1, DB_VERSION);
     }
 
+    /**
+     * SQLiteOpenHelper 在同一个事务中调用，任何一步失败都会整体回滚
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
+        for (int version = oldVersion; version < newVersion; ++version) {
+            for (String sql : MIGRATIONS[version - 1]) {
+                db.execSQL(sql);
+            }
+        }
     }
 }
@@ -10,10 +10,23 @@ import java.util.concurrent.ConcurrentHashMap;
 public interface DownloadDBController {
     void close();
     void update(DownloadInfo downloadInfo);
+    /**
+     * 在一个事务中写入多个任务
+     */
+    void update(List<DownloadInfo> downloadInfoList);
     void delete(DownloadInfo downloadInfo);
     void update(DownloadThreadInfo downloadTHreadInfo);
     void delete(DownloadThreadInfo downloadTHreadInfo);
 
     DownloadInfo getDownloadInfoById(int id);
     List<DownloadInfo> getAllDownloading();
+    /**
+     * 与 getAllDownloading 顺序相同的一页未完成任务
+     * @param after 上一页的最后一个任务，为 null 时从第一页开始
+     */
+    List<DownloadInfo> getDownloading(DownloadInfo after, int limit);
+
+    void update(VerifiedDigest verifiedDigest);
+    void deleteVerifiedDigest(String path);
+    VerifiedDigest getVerifiedDigest(String path);
 }
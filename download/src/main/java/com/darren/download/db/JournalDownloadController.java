@@ -0,0 +1,772 @@
+package com.darren.download.db;
+
+import android.content.Context;
+
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadStatus;
+import com.darren.download.DownloadThreadInfo;
+import com.darren.download.log.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 基于只追加日志的 DownloadDBController：所有数据保存在内存中，每次修改追加一条二进制记录，
+ * 只有进度变化的任务和分段只写进度。启动时重放日志恢复数据，日志中的无效记录大大多于有效数据时在后台线程压缩。
+ * 每条记录是 [类型][长度][内容][crc32]，写到一半的记录在重放时被截掉。
+ * 每次修改都写入系统缓存，进程被杀不会丢失数据；只在压缩和关闭时 fsync，与 SQLite 的 WAL + synchronous=NORMAL 相当。
+ */
+public class JournalDownloadController implements DownloadDBController {
+    private static final String JOURNAL_NAME = "downloads.journal";
+    private static final int MAGIC = 0x444A4E4C;
+    private static final int JOURNAL_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024*1024;
+    private static final int COMPACT_MIN_RECORDS = 8192;
+    private static final int COMPACT_RATIO = 4;
+
+    private static final byte TYPE_TASK = 1;
+    private static final byte TYPE_TASK_PROGRESS = 2;
+    private static final byte TYPE_TASK_DELETE = 3;
+    private static final byte TYPE_THREAD = 4;
+    private static final byte TYPE_THREAD_PROGRESS = 5;
+    private static final byte TYPE_THREAD_DELETE = 6;
+    private static final byte TYPE_DIGEST = 7;
+    private static final byte TYPE_DIGEST_DELETE = 8;
+
+    /*
+     * 与 DefaultDownloadController 一样按创建时间倒序，相同时按 taskId
+     */
+    private static final Comparator<TaskRecord> TASK_ORDER = new Comparator<TaskRecord>() {
+        @Override
+        public int compare(TaskRecord record1, TaskRecord record2) {
+            int result = Long.compare(record2.createAt, record1.createAt);
+            return (0 != result) ? result : record1.taskId.compareTo(record2.taskId);
+        }
+    };
+
+    private final File journalFile;
+    private final LinkedHashMap<String, TaskRecord> taskMap;
+    private final LinkedHashMap<String, ThreadRecord> threadMap;
+    private final HashMap<String, VerifiedDigest> digestMap;
+    private final ByteArrayOutputStream recordBuffer;
+    private final DataOutputStream recordOut;
+    private final CRC32 crc32;
+
+    private FileOutputStream fileOutputStream;
+    private DataOutputStream journalOut;
+    private int recordCount;
+    /*
+     * 压缩期间追加的记录，压缩完成时补写到新日志的末尾
+     */
+    private List<byte[]> compactionTail;
+    private boolean isClosed;
+
+    public JournalDownloadController(Context context) throws IOException {
+        this(new File(context.getFilesDir(), JOURNAL_NAME));
+    }
+
+    public JournalDownloadController(File journalFile) throws IOException {
+        this.journalFile = journalFile;
+        this.taskMap = new LinkedHashMap<>();
+        this.threadMap = new LinkedHashMap<>();
+        this.digestMap = new HashMap<>();
+        this.recordBuffer = new ByteArrayOutputStream(256);
+        this.recordOut = new DataOutputStream(recordBuffer);
+        this.crc32 = new CRC32();
+
+        long validLength = replay();
+        openJournal(validLength);
+    }
+
+    public File getJournalFile() {
+        return this.journalFile;
+    }
+
+    /**
+     * @return 最后一条完整记录的结束位置，日志不存在或者头部无效时返回 0
+     */
+    private long replay() throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 64*1024));
+        long validLength = 0;
+        try {
+            if (MAGIC != in.readInt() || JOURNAL_VERSION != in.readInt()) {
+                LogUtils.logd(JournalDownloadController.class.getSimpleName(), "invalid journal header: " + journalFile);
+                return 0;
+            }
+            validLength = HEADER_SIZE;
+
+            byte[] payload = new byte[1024];
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (0 > length || MAX_RECORD_SIZE < length) {
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                in.readFully(payload, 0, length);
+                int crc = in.readInt();
+                if (crc != checksum(type, payload, length)) {
+                    break;
+                }
+
+                try {
+                    apply(type, new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                } catch (IOException e) {
+                    // 校验通过但无法解析，可能是更新版本写入的记录，从这里截断
+                    e.printStackTrace();
+                    break;
+                }
+                recordCount++;
+                validLength += 1 + 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录没有写完
+        } finally {
+            in.close();
+        }
+
+        if (validLength < journalFile.length()) {
+            LogUtils.logd(JournalDownloadController.class.getSimpleName(), "truncate journal from "
+                    + journalFile.length() + " to " + validLength);
+        }
+        return validLength;
+    }
+
+    private void openJournal(long validLength) throws IOException {
+        if (HEADER_SIZE > validLength) {
+            File parent = journalFile.getParentFile();
+            if (null != parent && !parent.exists()) {
+                parent.mkdirs();
+            }
+            writeHeader(journalFile);
+            recordCount = 0;
+        } else if (validLength < journalFile.length()) {
+            RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+            try {
+                file.setLength(validLength);
+            } finally {
+                file.close();
+            }
+        }
+        fileOutputStream = new FileOutputStream(journalFile, true);
+        journalOut = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64*1024));
+    }
+
+    private static void writeHeader(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+        } finally {
+            out.close();
+        }
+    }
+
+    private int checksum(byte type, byte[] payload, int length) {
+        crc32.reset();
+        crc32.update(type);
+        crc32.update(payload, 0, length);
+        return (int) crc32.getValue();
+    }
+
+    private void apply(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case TYPE_TASK: {
+                TaskRecord record = TaskRecord.read(in);
+                taskMap.put(record.taskId, record);
+                break;
+            }
+            case TYPE_TASK_PROGRESS: {
+                TaskRecord record = taskMap.get(in.readUTF());
+                long progress = in.readLong();
+                int status = in.readInt();
+                if (null != record) {
+                    record.progress = progress;
+                    record.status = status;
+                }
+                break;
+            }
+            case TYPE_TASK_DELETE:
+                removeTask(in.readUTF());
+                break;
+            case TYPE_THREAD: {
+                ThreadRecord record = ThreadRecord.read(in);
+                threadMap.put(record.threadId, record);
+                break;
+            }
+            case TYPE_THREAD_PROGRESS: {
+                ThreadRecord record = threadMap.get(in.readUTF());
+                long end = in.readLong();
+                long progress = in.readLong();
+                if (null != record) {
+                    record.end = end;
+                    record.progress = progress;
+                }
+                break;
+            }
+            case TYPE_THREAD_DELETE:
+                threadMap.remove(in.readUTF());
+                break;
+            case TYPE_DIGEST: {
+                VerifiedDigest verifiedDigest = new VerifiedDigest(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readUTF());
+                digestMap.put(verifiedDigest.getPath(), verifiedDigest);
+                break;
+            }
+            case TYPE_DIGEST_DELETE:
+                digestMap.remove(in.readUTF());
+                break;
+            default:
+                throw new IOException("unknown record type: " + type);
+        }
+    }
+
+    private void removeTask(String taskId) {
+        taskMap.remove(taskId);
+        Iterator<ThreadRecord> iterator = threadMap.values().iterator();
+        while (iterator.hasNext()) {
+            if (taskId.equals(iterator.next().downloadInfoId)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * recordOut 中是已经写好的内容
+     */
+    private void appendRecord(byte type) {
+        if (isClosed) {
+            throw new IllegalStateException("journal is closed");
+        }
+
+        byte[] payload = recordBuffer.toByteArray();
+        recordBuffer.reset();
+        try {
+            journalOut.writeByte(type);
+            journalOut.writeInt(payload.length);
+            journalOut.write(payload);
+            journalOut.writeInt(checksum(type, payload, payload.length));
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        recordCount++;
+
+        if (null != compactionTail) {
+            byte[] record = new byte[1 + payload.length];
+            record[0] = type;
+            System.arraycopy(payload, 0, record, 1, payload.length);
+            compactionTail.add(record);
+        }
+    }
+
+    private void commit() {
+        try {
+            journalOut.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("flush journal failed", e);
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+    private void writeTask(DownloadInfo downloadInfo) throws IOException {
+        TaskRecord record = TaskRecord.of(downloadInfo);
+        TaskRecord oldRecord = taskMap.get(record.taskId);
+        if (null != oldRecord && oldRecord.sameExceptProgress(record)) {
+            if (oldRecord.progress == record.progress && oldRecord.status == record.status) {
+                return;
+            }
+            recordOut.writeUTF(record.taskId);
+            recordOut.writeLong(record.progress);
+            recordOut.writeInt(record.status);
+            appendRecord(TYPE_TASK_PROGRESS);
+        } else {
+            record.write(recordOut);
+            appendRecord(TYPE_TASK);
+        }
+        taskMap.put(record.taskId, record);
+    }
+
+    private void writeThread(DownloadThreadInfo downloadThreadInfo) throws IOException {
+        ThreadRecord record = ThreadRecord.of(downloadThreadInfo);
+        ThreadRecord oldRecord = threadMap.get(record.threadId);
+        if (null != oldRecord && oldRecord.sameExceptProgress(record)) {
+            if (oldRecord.end == record.end && oldRecord.progress == record.progress) {
+                return;
+            }
+            recordOut.writeUTF(record.threadId);
+            recordOut.writeLong(record.end);
+            recordOut.writeLong(record.progress);
+            appendRecord(TYPE_THREAD_PROGRESS);
+        } else {
+            record.write(recordOut);
+            appendRecord(TYPE_THREAD);
+        }
+        threadMap.put(record.threadId, record);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        try {
+            journalOut.flush();
+            fileOutputStream.getFD().sync();
+            journalOut.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        isClosed = true;
+    }
+
+    @Override
+    public synchronized void update(DownloadInfo downloadInfo) {
+        update(Collections.singletonList(downloadInfo));
+    }
+
+    @Override
+    public synchronized void update(List<DownloadInfo> downloadInfoList) {
+        try {
+            for (DownloadInfo downloadInfo : downloadInfoList) {
+                writeTask(downloadInfo);
+                for (DownloadThreadInfo downloadThreadInfo : downloadInfo.getDownloadThreadInfoList().values()) {
+                    writeThread(downloadThreadInfo);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        commit();
+    }
+
+    @Override
+    public synchronized void delete(DownloadInfo downloadInfo) {
+        if (!taskMap.containsKey(downloadInfo.getTaskId())) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(downloadInfo.getTaskId());
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        appendRecord(TYPE_TASK_DELETE);
+        removeTask(downloadInfo.getTaskId());
+        commit();
+    }
+
+    @Override
+    public synchronized void update(DownloadThreadInfo downloadThreadInfo) {
+        try {
+            writeThread(downloadThreadInfo);
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        commit();
+    }
+
+    @Override
+    public synchronized void delete(DownloadThreadInfo downloadThreadInfo) {
+        if (null == threadMap.remove(downloadThreadInfo.getThreadId())) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(downloadThreadInfo.getThreadId());
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        appendRecord(TYPE_THREAD_DELETE);
+        commit();
+    }
+
+    @Override
+    public synchronized DownloadInfo getDownloadInfoById(int id) {
+        TaskRecord record = taskMap.get(String.valueOf(id));
+        if (null == record) {
+            return null;
+        }
+        DownloadInfo downloadInfo = record.toDownloadInfo();
+        for (ThreadRecord threadRecord : threadMap.values()) {
+            if (record.taskId.equals(threadRecord.downloadInfoId)) {
+                downloadInfo.addDownloadThreadInfo(threadRecord.toDownloadThreadInfo());
+            }
+        }
+        return downloadInfo;
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getAllDownloading() {
+        return getDownloading(null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized List<DownloadInfo> getDownloading(DownloadInfo after, int limit) {
+        final TaskRecord afterRecord = (null != after) ? TaskRecord.of(after) : null;
+        List<TaskRecord> recordList = new ArrayList<>();
+        for (TaskRecord record : taskMap.values()) {
+            if (DownloadStatus.STATUS_COMPLETED != record.status
+                    && (null == afterRecord || 0 < TASK_ORDER.compare(record, afterRecord))) {
+                recordList.add(record);
+            }
+        }
+        Collections.sort(recordList, TASK_ORDER);
+        if (recordList.size() > limit) {
+            recordList = recordList.subList(0, limit);
+        }
+
+        Map<String, DownloadInfo> downloadInfoMap = new HashMap<>();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>();
+        for (TaskRecord record : recordList) {
+            DownloadInfo downloadInfo = record.toDownloadInfo();
+            downloadInfoMap.put(record.taskId, downloadInfo);
+            downloadInfoList.add(downloadInfo);
+        }
+        for (ThreadRecord threadRecord : threadMap.values()) {
+            DownloadInfo downloadInfo = downloadInfoMap.get(threadRecord.downloadInfoId);
+            if (null != downloadInfo) {
+                downloadInfo.addDownloadThreadInfo(threadRecord.toDownloadThreadInfo());
+            }
+        }
+        return downloadInfoList;
+    }
+
+    @Override
+    public synchronized void update(VerifiedDigest verifiedDigest) {
+        try {
+            writeDigest(recordOut, verifiedDigest);
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        appendRecord(TYPE_DIGEST);
+        digestMap.put(verifiedDigest.getPath(), copyOf(verifiedDigest));
+        commit();
+    }
+
+    @Override
+    public synchronized void deleteVerifiedDigest(String path) {
+        if (null == digestMap.remove(path)) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(path);
+        } catch (IOException e) {
+            throw new IllegalStateException("append journal failed", e);
+        }
+        appendRecord(TYPE_DIGEST_DELETE);
+        commit();
+    }
+
+    @Override
+    public synchronized VerifiedDigest getVerifiedDigest(String path) {
+        VerifiedDigest verifiedDigest = digestMap.get(path);
+        return (null != verifiedDigest) ? copyOf(verifiedDigest) : null;
+    }
+
+    private static void writeDigest(DataOutputStream out, VerifiedDigest verifiedDigest) throws IOException {
+        out.writeUTF(verifiedDigest.getPath());
+        out.writeLong(verifiedDigest.getSize());
+        out.writeLong(verifiedDigest.getLastModified());
+        out.writeLong(verifiedDigest.getVerifiedAt());
+        out.writeUTF(verifiedDigest.getDigest());
+    }
+
+    private static VerifiedDigest copyOf(VerifiedDigest verifiedDigest) {
+        return new VerifiedDigest(verifiedDigest.getPath(), verifiedDigest.getSize(), verifiedDigest.getLastModified(),
+                verifiedDigest.getVerifiedAt(), verifiedDigest.getDigest());
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        int liveCount = taskMap.size() + threadMap.size() + digestMap.size();
+        if (null != compactionTail || COMPACT_MIN_RECORDS > recordCount || COMPACT_RATIO * liveCount > recordCount) {
+            return;
+        }
+
+        // 在锁内取快照，之后追加的记录同时记到 compactionTail
+        final List<byte[]> snapshot = new ArrayList<>(liveCount);
+        try {
+            for (TaskRecord record : taskMap.values()) {
+                record.write(recordOut);
+                snapshot.add(takeRecord(TYPE_TASK));
+            }
+            for (ThreadRecord record : threadMap.values()) {
+                record.write(recordOut);
+                snapshot.add(takeRecord(TYPE_THREAD));
+            }
+            for (VerifiedDigest verifiedDigest : digestMap.values()) {
+                writeDigest(recordOut, verifiedDigest);
+                snapshot.add(takeRecord(TYPE_DIGEST));
+            }
+        } catch (IOException e) {
+            recordBuffer.reset();
+            e.printStackTrace();
+            return;
+        }
+        compactionTail = new ArrayList<>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compact(snapshot);
+            }
+        }, "JournalCompaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private byte[] takeRecord(byte type) {
+        byte[] payload = recordBuffer.toByteArray();
+        recordBuffer.reset();
+        byte[] record = new byte[1 + payload.length];
+        record[0] = type;
+        System.arraycopy(payload, 0, record, 1, payload.length);
+        return record;
+    }
+
+    private void compact(List<byte[]> snapshot) {
+        File tempFile = new File(journalFile.getPath() + ".compact");
+        FileOutputStream tempStream = null;
+        try {
+            tempStream = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempStream, 64*1024));
+            out.writeInt(MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            CRC32 checksum = new CRC32();
+            writeRecords(out, snapshot, checksum);
+            out.flush();
+
+            synchronized (this) {
+                if (isClosed) {
+                    throw new IOException("journal closed during compaction");
+                }
+                writeRecords(out, compactionTail, checksum);
+                out.flush();
+                tempStream.getFD().sync();
+                out.close();
+                tempStream = null;
+
+                journalOut.flush();
+                journalOut.close();
+                if (!tempFile.renameTo(journalFile)) {
+                    // 旧日志已经关闭，重新打开继续追加
+                    openJournal(journalFile.length());
+                    throw new IOException("rename " + tempFile + " failed");
+                }
+                LogUtils.logd(JournalDownloadController.class.getSimpleName(), "compact journal from "
+                        + recordCount + " to " + (snapshot.size() + compactionTail.size()) + " records");
+                recordCount = snapshot.size() + compactionTail.size();
+                openJournal(journalFile.length());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            LogUtils.logd(JournalDownloadController.class.getSimpleName(), "compact journal failed: " + e.getMessage());
+        } finally {
+            if (null != tempStream) {
+                try {
+                    tempStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            tempFile.delete();
+            synchronized (this) {
+                compactionTail = null;
+            }
+        }
+    }
+
+    private static void writeRecords(DataOutputStream out, List<byte[]> recordList, CRC32 checksum) throws IOException {
+        for (byte[] record : recordList) {
+            out.writeByte(record[0]);
+            out.writeInt(record.length - 1);
+            out.write(record, 1, record.length - 1);
+            checksum.reset();
+            checksum.update(record, 0, record.length);
+            out.writeInt((int) checksum.getValue());
+        }
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(null != value);
+        if (null != value) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static boolean equals(String value1, String value2) {
+        return (null == value1) ? (null == value2) : value1.equals(value2);
+    }
+
+    private static class TaskRecord {
+        String taskId;
+        int supportRanges;
+        int forceInstall;
+        long createAt;
+        String url;
+        String path;
+        long size;
+        long progress;
+        int status;
+        String md5;
+        String integrityAlgorithm;
+        int priority;
+
+        static TaskRecord of(DownloadInfo downloadInfo) {
+            TaskRecord record = new TaskRecord();
+            record.taskId = downloadInfo.getTaskId();
+            record.supportRanges = downloadInfo.getSupportRanges();
+            record.forceInstall = downloadInfo.getForceInstall();
+            record.createAt = downloadInfo.getCreateAt();
+            record.url = downloadInfo.getUrl();
+            record.path = downloadInfo.getSavePath();
+            record.size = downloadInfo.getSize();
+            record.progress = downloadInfo.getProgress();
+            record.status = downloadInfo.getStatus();
+            record.md5 = downloadInfo.getFileMD5();
+            record.integrityAlgorithm = downloadInfo.getIntegrityAlgorithm();
+            record.priority = downloadInfo.getPriority();
+            return record;
+        }
+
+        static TaskRecord read(DataInputStream in) throws IOException {
+            TaskRecord record = new TaskRecord();
+            record.taskId = in.readUTF();
+            record.supportRanges = in.readInt();
+            record.forceInstall = in.readInt();
+            record.createAt = in.readLong();
+            record.url = readNullableUTF(in);
+            record.path = readNullableUTF(in);
+            record.size = in.readLong();
+            record.progress = in.readLong();
+            record.status = in.readInt();
+            record.md5 = readNullableUTF(in);
+            record.integrityAlgorithm = readNullableUTF(in);
+            // 旧版本写的记录没有优先级
+            record.priority = (0 < in.available()) ? in.readInt() : 0;
+            return record;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(taskId);
+            out.writeInt(supportRanges);
+            out.writeInt(forceInstall);
+            out.writeLong(createAt);
+            writeNullableUTF(out, url);
+            writeNullableUTF(out, path);
+            out.writeLong(size);
+            out.writeLong(progress);
+            out.writeInt(status);
+            writeNullableUTF(out, md5);
+            writeNullableUTF(out, integrityAlgorithm);
+            out.writeInt(priority);
+        }
+
+        boolean sameExceptProgress(TaskRecord record) {
+            return supportRanges == record.supportRanges && forceInstall == record.forceInstall
+                    && createAt == record.createAt && size == record.size
+                    && JournalDownloadController.equals(url, record.url)
+                    && JournalDownloadController.equals(path, record.path)
+                    && JournalDownloadController.equals(md5, record.md5)
+                    && JournalDownloadController.equals(integrityAlgorithm, record.integrityAlgorithm)
+                    && priority == record.priority;
+        }
+
+        DownloadInfo toDownloadInfo() {
+            DownloadInfo downloadInfo = new DownloadInfo();
+            downloadInfo.setTaskId(taskId);
+            downloadInfo.setSupportRanges(supportRanges);
+            downloadInfo.setForceInstall(forceInstall);
+            downloadInfo.setCreateAt(createAt);
+            downloadInfo.setUrl(url);
+            downloadInfo.setSavePath(path);
+            downloadInfo.setSize(size);
+            downloadInfo.setProgress(progress);
+            downloadInfo.setStatus(status);
+            downloadInfo.setFileMD5(md5);
+            downloadInfo.setIntegrityAlgorithm(integrityAlgorithm);
+            downloadInfo.setPriority(priority);
+            return downloadInfo;
+        }
+    }
+
+    private static class ThreadRecord {
+        String threadId;
+        String downloadInfoId;
+        String url;
+        long start;
+        long end;
+        long progress;
+
+        static ThreadRecord of(DownloadThreadInfo downloadThreadInfo) {
+            ThreadRecord record = new ThreadRecord();
+            record.threadId = downloadThreadInfo.getThreadId();
+            record.downloadInfoId = downloadThreadInfo.getDownloadInfoId();
+            record.url = downloadThreadInfo.getUrl();
+            record.start = downloadThreadInfo.getStart();
+            record.end = downloadThreadInfo.getEnd();
+            record.progress = downloadThreadInfo.getProgress();
+            return record;
+        }
+
+        static ThreadRecord read(DataInputStream in) throws IOException {
+            ThreadRecord record = new ThreadRecord();
+            record.threadId = in.readUTF();
+            record.downloadInfoId = in.readUTF();
+            record.url = readNullableUTF(in);
+            record.start = in.readLong();
+            record.end = in.readLong();
+            record.progress = in.readLong();
+            return record;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(threadId);
+            out.writeUTF(downloadInfoId);
+            writeNullableUTF(out, url);
+            out.writeLong(start);
+            out.writeLong(end);
+            out.writeLong(progress);
+        }
+
+        /**
+         * 分段被拆分时 end 会变小，end 和进度一起按进度记录写入
+         */
+        boolean sameExceptProgress(ThreadRecord record) {
+            return start == record.start && JournalDownloadController.equals(downloadInfoId, record.downloadInfoId)
+                    && JournalDownloadController.equals(url, record.url);
+        }
+
+        DownloadThreadInfo toDownloadThreadInfo() {
+            DownloadThreadInfo downloadThreadInfo = new DownloadThreadInfo(downloadInfoId, threadId, url, start, end);
+            downloadThreadInfo.setProgress(progress);
+            return downloadThreadInfo;
+        }
+    }
+}
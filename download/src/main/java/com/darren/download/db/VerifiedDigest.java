@@ -0,0 +1,59 @@
+package com.darren.download.db;
+
+/**
+ * 已经校验通过的文件摘要，文件大小和修改时间都没有变化时不需要重新计算
+ */
+public final class VerifiedDigest {
+    private String path;
+    private long size;
+    private long lastModified;
+    private long verifiedAt;
+    private String digest;
+
+    public VerifiedDigest() {
+
+    }
+
+    public VerifiedDigest(String path, long size, long lastModified, long verifiedAt, String digest) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.verifiedAt = verifiedAt;
+        this.digest = digest;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getLastModified() {
+        return this.lastModified;
+    }
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getVerifiedAt() {
+        return this.verifiedAt;
+    }
+    public void setVerifiedAt(long verifiedAt) {
+        this.verifiedAt = verifiedAt;
+    }
+
+    public String getDigest() {
+        return this.digest;
+    }
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+}
@@ -0,0 +1,77 @@
+package com.darren.download.db;
+
+import com.darren.download.file.BufferPool;
+import com.darren.download.file.IntegrityAlgorithm;
+
+import java.io.File;
+
+/**
+ * 按路径、大小和修改时间缓存已经校验通过的摘要，文件没有变化时只需要 stat 一次，不用重新读整个文件。
+ * 修改时间的精度可能只有秒级，与校验时间离得太近的记录不可信，仍然重新计算一次。
+ */
+public class VerifiedDigestCache {
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private volatile DownloadDBController dbController;
+
+    public void attach(DownloadDBController dbController) {
+        this.dbController = dbController;
+    }
+
+    public void detach() {
+        this.dbController = null;
+    }
+
+    /**
+     * @return 文件大小和修改时间与缓存一致并且摘要相同时返回 true
+     */
+    public boolean isVerified(File file, String digest) {
+        DownloadDBController controller = dbController;
+        if (null == controller || null == digest) {
+            return false;
+        }
+
+        VerifiedDigest verifiedDigest = controller.getVerifiedDigest(file.getAbsolutePath());
+        if (null == verifiedDigest) {
+            return false;
+        }
+        // 在校验的同一时间片内文件仍可能被改写而修改时间不变
+        if (verifiedDigest.getLastModified() + MTIME_GRANULARITY > verifiedDigest.getVerifiedAt()) {
+            return false;
+        }
+        return (file.length() == verifiedDigest.getSize())
+                && (file.lastModified() == verifiedDigest.getLastModified())
+                && digest.equalsIgnoreCase(verifiedDigest.getDigest());
+    }
+
+    /**
+     * 缓存没有命中时按 algorithm 计算文件摘要，一致时记入缓存
+     */
+    public boolean verify(File file, String digest, IntegrityAlgorithm algorithm, BufferPool bufferPool) {
+        if (isVerified(file, digest)) {
+            return true;
+        }
+        if (algorithm.matches(digest, algorithm.digestFile(file, bufferPool))) {
+            put(file, digest);
+            return true;
+        }
+        return false;
+    }
+
+    public void put(File file, String digest) {
+        DownloadDBController controller = dbController;
+        if (null == controller || null == digest || !file.exists()) {
+            return;
+        }
+
+        controller.update(new VerifiedDigest(file.getAbsolutePath(), file.length(), file.lastModified(),
+                System.currentTimeMillis(), digest));
+    }
+
+    public void remove(String path) {
+        DownloadDBController controller = dbController;
+        if (null != controller) {
+            controller.deleteVerifiedDigest(new File(path).getAbsolutePath());
+        }
+    }
+}
@@ -10,6 +10,9 @@ public class DownloadException extends RuntimeException {
     public static final int CODE_EXCEPTION_FILE_NULL = 7;
     public static final int CODE_EXCEPTION_PAUSE = 8;
     public static final int CODE_EXCEPTION_INIT_FAILED = 9;
+    public static final int CODE_EXCEPTION_QUEUE_FULL = 10;
+    public static final int CODE_EXCEPTION_SERVER_BUSY = 11;
+    public static final int CODE_EXCEPTION_NO_SPACE = 12;
 
     private int code = 0;
 
@@ -22,6 +25,10 @@ public class DownloadException extends RuntimeException {
         super(message);
     }
 
+    public int getCode() {
+        return this.code;
+    }
+
     public void setCode(int code) {
         this.code = code;
     }
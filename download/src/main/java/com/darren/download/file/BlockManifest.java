@@ -0,0 +1,170 @@
+package com.darren.download.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * 按固定大小分块的摘要清单，文件校验失败时只重新下载不一致的块。
+ * 清单可以随 DownloadInfo 一起提供，也可以在下载过程中按写入的内容在本地计算，
+ * 保存在下载文件旁边的 .blocks 文件中。
+ */
+public class BlockManifest {
+    private static final String SIDECAR_SUFFIX = ".blocks";
+    private static final String TYPE_SUPPLIED = "supplied";
+    private static final String TYPE_LOCAL = "local";
+    private static final String UNKNOWN_HASH = "-";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final IntegrityAlgorithm algorithm;
+    private final long blockSize;
+    private final boolean isSupplied;
+    private String[] hashes;
+
+    /**
+     * 随下载任务提供的清单
+     * @param hashes 每一块的 32 位 md5，最后一块可以不满 blockSize
+     */
+    public BlockManifest(long blockSize, String[] hashes) {
+        this(IntegrityAlgorithm.MD5, blockSize, hashes, true);
+    }
+
+    /**
+     * 随下载任务提供的清单，每一块的摘要使用 algorithm 计算
+     */
+    public BlockManifest(IntegrityAlgorithm algorithm, long blockSize, String[] hashes) {
+        this(algorithm, blockSize, hashes, true);
+    }
+
+    private BlockManifest(IntegrityAlgorithm algorithm, long blockSize, String[] hashes, boolean isSupplied) {
+        if (0 >= blockSize) {
+            throw new IllegalArgumentException("blockSize must bigger than 0");
+        }
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+        this.hashes = hashes;
+        this.isSupplied = isSupplied;
+    }
+
+    /**
+     * 本地计算的清单，各块的 crc32c 在内容第一次读到时记录。
+     * 本地清单只用来发现写入之后被损坏的块，不需要抗碰撞
+     */
+    public static BlockManifest createLocal(long blockSize, long fileSize) {
+        return new BlockManifest(IntegrityAlgorithm.CRC32C, blockSize, new String[getBlockCount(blockSize, fileSize)], false);
+    }
+
+    public IntegrityAlgorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public long getBlockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * @return 是否随任务提供。本地计算的清单只能发现写入之后被损坏的块，不能发现传输中出错的块
+     */
+    public boolean isSupplied() {
+        return this.isSupplied;
+    }
+
+    public synchronized int getBlockCount() {
+        return hashes.length;
+    }
+
+    public synchronized String getHash(int index) {
+        return (index < hashes.length) ? hashes[index] : null;
+    }
+
+    public synchronized void setHash(int index, String hash) {
+        if (index < hashes.length) {
+            hashes[index] = hash;
+        }
+    }
+
+    public long getBlockStart(int index) {
+        return index * blockSize;
+    }
+
+    /**
+     * @return 最后一个字节的位置
+     */
+    public long getBlockEnd(int index, long fileSize) {
+        return Math.min(fileSize, (index+1) * blockSize) - 1;
+    }
+
+    public static int getBlockCount(long blockSize, long fileSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    public static File getSidecarFile(String savePath) {
+        return new File(savePath + SIDECAR_SUFFIX);
+    }
+
+    public synchronized void save(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET));
+        try {
+            writer.write((isSupplied ? TYPE_SUPPLIED : TYPE_LOCAL) + " " + algorithm.getName());
+            writer.newLine();
+            writer.write(String.valueOf(blockSize));
+            writer.newLine();
+            for (String hash : hashes) {
+                writer.write((null == hash) ? UNKNOWN_HASH : hash);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("rename " + tempFile.getPath() + " failed");
+        }
+    }
+
+    /**
+     * @return 文件不存在或与 fileSize 对不上时返回 null
+     */
+    public static BlockManifest load(File file, long fileSize) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            // 第一行是类型和算法，没有算法的旧文件按 md5 处理
+            String[] header = reader.readLine().trim().split(" ");
+            boolean isSupplied = TYPE_SUPPLIED.equals(header[0]);
+            IntegrityAlgorithm algorithm = IntegrityAlgorithm.forName((1 < header.length) ? header[1] : null);
+            long blockSize = Long.parseLong(reader.readLine().trim());
+            String[] hashes = new String[getBlockCount(blockSize, fileSize)];
+            for (int i = 0; i < hashes.length; ++i) {
+                String line = reader.readLine();
+                if (null == line) {
+                    return null;
+                }
+                hashes[i] = UNKNOWN_HASH.equals(line.trim()) ? null : line.trim();
+            }
+            return new BlockManifest(algorithm, blockSize, hashes, isSupplied);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.darren.download.file;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分段下载、写文件以及计算文件 md5 共用的 byte[] 缓冲池，
+ * 按 8K 到 256K 的 2 的幂分级，池中缓存的总字节数不超过 maxPoolBytes。
+ */
+public class BufferPool {
+    public static final int MIN_BUFFER_SIZE = 8*1024;
+    public static final int MAX_BUFFER_SIZE = 256*1024;
+
+    private static final int DEFAULT_MAX_POOL_BYTES = 4*1024*1024;
+    private static final BufferPool DEFAULT_POOL = new BufferPool(DEFAULT_MAX_POOL_BYTES);
+
+    private final long maxPoolBytes;
+    private final List<ArrayDeque<byte[]>> freeLists;
+    private final AtomicLong allocateCount;
+    private final AtomicLong reuseCount;
+    private long pooledBytes;
+    private int pooledCount;
+
+    public static BufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    public BufferPool(long maxPoolBytes) {
+        this.maxPoolBytes = maxPoolBytes;
+        this.freeLists = new ArrayList<>();
+        for (int i = 0; i <= indexOf(MAX_BUFFER_SIZE); ++i) {
+            freeLists.add(new ArrayDeque<byte[]>());
+        }
+        this.allocateCount = new AtomicLong(0);
+        this.reuseCount = new AtomicLong(0);
+    }
+
+    /**
+     * @return 长度不小于 size 的缓冲区，size 超过 MAX_BUFFER_SIZE 时只返回 MAX_BUFFER_SIZE 大小的缓冲区
+     */
+    public byte[] acquire(int size) {
+        int index = indexOf(size);
+        synchronized (this) {
+            byte[] buffer = freeLists.get(index).pollLast();
+            if (null != buffer) {
+                pooledBytes -= buffer.length;
+                pooledCount--;
+                reuseCount.incrementAndGet();
+                return buffer;
+            }
+        }
+        allocateCount.incrementAndGet();
+        return new byte[MIN_BUFFER_SIZE << index];
+    }
+
+    public void release(byte[] buffer) {
+        if (null == buffer || buffer.length != sizeOf(buffer.length)) {
+            return;
+        }
+        synchronized (this) {
+            if (maxPoolBytes >= (pooledBytes + buffer.length)) {
+                freeLists.get(indexOf(buffer.length)).addLast(buffer);
+                pooledBytes += buffer.length;
+                pooledCount++;
+            }
+        }
+    }
+
+    public long getAllocateCount() {
+        return allocateCount.get();
+    }
+
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    public synchronized int getPooledCount() {
+        return this.pooledCount;
+    }
+
+    public synchronized long getPooledBytes() {
+        return this.pooledBytes;
+    }
+
+    /**
+     * 按吞吐量给出合适的单次读取大小：大约每 10ms 读一次，限制在 MIN_BUFFER_SIZE 与 MAX_BUFFER_SIZE 之间
+     */
+    public static int readSizeFor(long bytesPerSecond) {
+        return sizeOf((int) Math.min(MAX_BUFFER_SIZE, bytesPerSecond/100));
+    }
+
+    /**
+     * @return 不小于 size 的分级大小
+     */
+    public static int sizeOf(int size) {
+        return MIN_BUFFER_SIZE << indexOf(size);
+    }
+
+    private static int indexOf(int size) {
+        int index = 0;
+        while ((MIN_BUFFER_SIZE << index) < size && (MIN_BUFFER_SIZE << index) < MAX_BUFFER_SIZE) {
+            index++;
+        }
+        return index;
+    }
+}
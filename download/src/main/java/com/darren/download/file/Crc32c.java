@@ -0,0 +1,66 @@
+package com.darren.download.file;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C(Castagnoli)，按 slicing-by-8 查表计算，每次处理 8 个字节。
+ * java.util.zip.CRC32C 需要 Android 8.0 以上，这里自己实现。
+ */
+public class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = createTables();
+
+    private int crc = 0xFFFFFFFF;
+
+    private static int[][] createTables() {
+        int[][] tables = new int[8][256];
+        for (int i = 0; i < 256; ++i) {
+            int value = i;
+            for (int bit = 0; bit < 8; ++bit) {
+                value = (0 != (value & 1)) ? ((value >>> 1) ^ POLYNOMIAL) : (value >>> 1);
+            }
+            tables[0][i] = value;
+        }
+        for (int i = 0; i < 256; ++i) {
+            for (int k = 1; k < 8; ++k) {
+                tables[k][i] = (tables[k-1][i] >>> 8) ^ tables[0][tables[k-1][i] & 0xFF];
+            }
+        }
+        return tables;
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3],
+                t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int value = crc;
+        while (8 <= length) {
+            int low = value ^ ((data[offset] & 0xFF) | ((data[offset+1] & 0xFF) << 8)
+                    | ((data[offset+2] & 0xFF) << 16) | ((data[offset+3] & 0xFF) << 24));
+            value = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+                    ^ t3[data[offset+4] & 0xFF] ^ t2[data[offset+5] & 0xFF]
+                    ^ t1[data[offset+6] & 0xFF] ^ t0[data[offset+7] & 0xFF];
+            offset += 8;
+            length -= 8;
+        }
+        while (0 < length--) {
+            value = (value >>> 8) ^ t0[(value ^ data[offset++]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
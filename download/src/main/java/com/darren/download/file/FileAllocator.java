@@ -0,0 +1,38 @@
+package com.darren.download.file;
+
+import com.darren.download.exception.DownloadException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 分段开始下载前按文件大小一次性分配目标文件
+ */
+public class FileAllocator {
+    /**
+     * @throws DownloadException 剩余空间不足时抛出 CODE_EXCEPTION_NO_SPACE
+     */
+    public static void allocate(File file, long size) throws IOException {
+        if (file.exists() && size == file.length()) {
+            return;
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (null != dir && !dir.exists()) {
+            dir.mkdirs();
+        }
+        long needed = size - (file.exists() ? file.length() : 0);
+        if (null != dir && 0 < needed && dir.getUsableSpace() < needed) {
+            throw new DownloadException(DownloadException.CODE_EXCEPTION_NO_SPACE, "no enough space for " + file.getPath()
+                    + ", needed: " + needed + ", usable: " + dir.getUsableSpace());
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
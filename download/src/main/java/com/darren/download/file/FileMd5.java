@@ -4,12 +4,23 @@ import android.content.Context;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by xuyao on 3/25/17.
@@ -55,27 +66,45 @@ public class FileMd5 {
             if (!file.isFile()) {
                 return null;
             }
-            MessageDigest digest = null;
-            FileInputStream in = null;
-            byte buffer[] = new byte[1024000];
-            int len;
+            byte buffer[] = BufferPool.getDefault().acquire(BufferPool.MAX_BUFFER_SIZE);
             try {
-                digest = MessageDigest.getInstance("MD5");
-                in = new FileInputStream(file);
-                while ((len = in.read(buffer, 0, 1024000)) != -1) {
-                    digest.update(buffer, 0, len);
-                }
-                in.close();
-            } catch (Exception e) {
+                return getFileMD5(file, MessageDigest.getInstance("MD5"), buffer);
+            } catch (NoSuchAlgorithmException e) {
                 e.printStackTrace();
                 return null;
+            } finally {
+                BufferPool.getDefault().release(buffer);
             }
-            BigInteger bigInt = new BigInteger(1, digest.digest());
-            return String.format("%032x", bigInt);
         }
         return  null;
 
     }
+
+    private static String getFileMD5(File file, MessageDigest digest, byte[] buffer) {
+        FileInputStream in = null;
+        int len;
+        try {
+            digest.reset();
+            in = new FileInputStream(file);
+            while ((len = in.read(buffer, 0, buffer.length)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        BigInteger bigInt = new BigInteger(1, digest.digest());
+        return String.format("%032x", bigInt);
+    }
+
     public static String getRawFileMD5(Context context, int rawFileId) {
         InputStream inputStream = context.getResources().openRawResource(rawFileId);
         if (inputStream != null){
@@ -108,23 +137,152 @@ public class FileMd5 {
      * @return
      */
     public static Map<String, String> getDirMD5(File file, boolean listChild) {
+        return getDirMD5(file, listChild, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 多线程计算文件夹中文件的MD5值，每个线程只持有一个读缓冲区和一个 MessageDigest
+     *
+     * @param parallelism 同时计算的线程数
+     * @return 文件路径到 md5 的 map，file 不是文件夹时返回 null
+     */
+    public static ConcurrentHashMap<String, String> getDirMD5(File file, boolean listChild, int parallelism) {
         if (!file.isDirectory()) {
             return null;
         }
-        Map<String, String> map = new HashMap<String, String>();
-        String md5;
-        File files[] = file.listFiles();
-        for (int i = 0; i < files.length; i++) {
-            File f = files[i];
-            if (f.isDirectory() && listChild) {
-                map.putAll(getDirMD5(f, listChild));
+        final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+        getDirMD5(file, listChild, parallelism, new DirMD5Callback() {
+            @Override
+            public void onFileMD5(File file, String md5) {
+                map.put(file.getPath(), md5);
+            }
+        });
+        return map;
+    }
+
+    public interface DirMD5Callback {
+        /**
+         * 在计算线程中回调，不同文件的回调可能同时发生
+         */
+        void onFileMD5(File file, String md5);
+    }
+
+    /**
+     * 按计算完成的顺序逐个回调结果，不在内存中保留整个结果集
+     *
+     * @return 所有文件都已经计算完成时返回 true，调用线程被中断时返回 false
+     */
+    public static boolean getDirMD5(File file, boolean listChild, int parallelism, DirMD5Callback callback) {
+        if (!file.isDirectory()) {
+            return false;
+        }
+        return new DirHasher(listChild, callback).run(file, Math.max(1, parallelism));
+    }
+
+    /**
+     * 各线程共用一个待处理队列：取到文件夹时把其中的文件放回队列，取到文件时计算 md5，
+     * 队列为空并且没有线程还在处理文件夹时结束
+     */
+    private static class DirHasher {
+        private static final long POLL_TIMEOUT = 10;
+
+        private final boolean listChild;
+        private final DirMD5Callback callback;
+        private final LinkedBlockingDeque<File> pendingQueue;
+        private final AtomicInteger pendingCount;
+
+        DirHasher(boolean listChild, DirMD5Callback callback) {
+            this.listChild = listChild;
+            this.callback = callback;
+            this.pendingQueue = new LinkedBlockingDeque<>();
+            this.pendingCount = new AtomicInteger(0);
+        }
+
+        boolean run(File dir, int parallelism) {
+            push(dir);
+            ExecutorService executorService = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                private AtomicInteger atomicInteger = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "FileMd5_" + atomicInteger.incrementAndGet());
+                }
+            });
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int i = 0; i < parallelism; ++i) {
+                futureList.add(executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWorker();
+                    }
+                }));
+            }
+            executorService.shutdown();
+
+            try {
+                for (Future<?> future : futureList) {
+                    future.get();
+                }
+                return true;
+            } catch (InterruptedException e) {
+                executorService.shutdownNow();
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                executorService.shutdownNow();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        private void push(File file) {
+            pendingCount.incrementAndGet();
+            pendingQueue.addLast(file);
+        }
+
+        private void runWorker() {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            byte[] buffer = BufferPool.getDefault().acquire(BufferPool.MAX_BUFFER_SIZE);
+            try {
+                while (0 < pendingCount.get() && !Thread.currentThread().isInterrupted()) {
+                    // 后进先出，优先处理刚列出来的子目录，队列中的文件数不会随目录深度一起增长
+                    File file = pendingQueue.pollLast(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (null == file) {
+                        continue;
+                    }
+                    try {
+                        process(file, digest, buffer);
+                    } finally {
+                        pendingCount.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                BufferPool.getDefault().release(buffer);
+            }
+        }
+
+        private void process(File file, MessageDigest digest, byte[] buffer) {
+            if (file.isDirectory()) {
+                File files[] = file.listFiles();
+                if (null == files) {
+                    return;
+                }
+                for (File f : files) {
+                    if (f.isFile() || (listChild && f.isDirectory())) {
+                        push(f);
+                    }
+                }
             } else {
-                md5 = getFileMD5(f);
+                String md5 = getFileMD5(file, digest, buffer);
                 if (md5 != null) {
-                    map.put(f.getPath(), md5);
+                    callback.onFileMD5(file, md5);
                 }
             }
         }
-        return map;
     }
 }
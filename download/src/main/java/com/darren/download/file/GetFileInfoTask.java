@@ -5,10 +5,12 @@ import android.text.TextUtils;
 import com.darren.download.DownloadConfig;
 import com.darren.download.DownloadInfo;
 import com.darren.download.exception.DownloadException;
+import com.darren.download.net.DownloadConnection;
 import com.darren.download.thread.ThreadTask;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
@@ -25,25 +27,30 @@ public class GetFileInfoTask extends ThreadTask<FileInfo> {
         this.downloadConfig = (new DownloadConfig.Builder()).build();
     }
 
+    public GetFileInfoTask(DownloadInfo downloadInfo, DownloadConfig downloadConfig) {
+        this.downloadInfo = downloadInfo;
+        this.downloadConfig = downloadConfig;
+    }
+
     @Override
     protected FileInfo execute() {
-        HttpURLConnection httpURLConnection = null;
+        DownloadConnection connection = null;
         final URL url;
         FileInfo fileInfo = null;
+        boolean isReusable = false;
 
         try {
             url = new URL(downloadInfo.getUrl());
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setConnectTimeout(downloadConfig.getConnectTimeout());
-            httpURLConnection.setReadTimeout(downloadConfig.getReadTimeout());
-            httpURLConnection.setRequestMethod(downloadConfig.getMethod());
-            httpURLConnection.setRequestProperty("Accept-Encoding", "identity");
-            httpURLConnection.setRequestProperty("Range", "bytes=" + 0 + "-");
-            final int responseCode = httpURLConnection.getResponseCode();
+            connection = downloadConfig.getTransport().probe(url, downloadConfig);
+            final int responseCode = connection.getResponseCode();
             if (HttpURLConnection.HTTP_OK == responseCode) {
-                fileInfo = parseHttpResponse(httpURLConnection, false);
+                fileInfo = parseHttpResponse(connection, false);
             } else if (HttpURLConnection.HTTP_PARTIAL == responseCode) {
-                fileInfo = parseHttpResponse(httpURLConnection, true);
+                fileInfo = new FileInfo(parseContentRange(connection), true);
+                InputStream inputStream = connection.getInputStream();
+                while (-1 != inputStream.read()) {
+                }
+                isReusable = true;
             } else {
                 throw  new DownloadException("unsupported response code: " + responseCode);
             }
@@ -54,15 +61,42 @@ public class GetFileInfoTask extends ThreadTask<FileInfo> {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            if (null != connection) {
+                if (isReusable) {
+                    connection.release();
+                } else {
+                    connection.close();
+                }
+            }
             return fileInfo;
         }
     }
 
-    private FileInfo parseHttpResponse(HttpURLConnection httpURLConnection, boolean isAcceptRanges) {
+    private long parseContentRange(DownloadConnection connection) {
+        // Content-Range: bytes 0-0/12345
+        String contentRange = connection.getHeaderField("Content-Range");
+        int index = (null == contentRange) ? -1 : contentRange.lastIndexOf('/');
+        if (-1 == index) {
+            throw new DownloadException("Content-Range is missing");
+        }
+
+        final long length;
+        try {
+            length = Long.parseLong(contentRange.substring(index+1).trim());
+        } catch (NumberFormatException e) {
+            throw new DownloadException("unknown Content-Range: " + contentRange);
+        }
+        if (0 >= length) {
+            throw new DownloadException("file length <= 0 exception");
+        }
+        return length;
+    }
+
+    private FileInfo parseHttpResponse(DownloadConnection connection, boolean isAcceptRanges) {
         final long length;
-        String contentLength = httpURLConnection.getHeaderField("Content-Length");
+        String contentLength = connection.getHeaderField("Content-Length");
         if (TextUtils.isEmpty(contentLength) || contentLength.equals("0") || contentLength.equals("-1")) {
-           length = httpURLConnection.getContentLength();
+           length = connection.getContentLength();
         } else {
             length = Long.parseLong(contentLength);
         }
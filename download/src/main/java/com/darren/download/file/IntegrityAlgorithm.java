@@ -0,0 +1,153 @@
+package com.darren.download.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 文件完整性校验算法，摘要统一用小写十六进制字符串表示，校验时只比较字符串。
+ * md5 兼容已有任务，sha-256 用于需要防篡改的场景，crc32c 计算开销最小，适合分块校验。
+ */
+public abstract class IntegrityAlgorithm {
+    public static final String NAME_MD5 = "md5";
+    public static final String NAME_SHA256 = "sha-256";
+    public static final String NAME_CRC32C = "crc32c";
+
+    public static final IntegrityAlgorithm MD5 = new MessageDigestAlgorithm(NAME_MD5, "MD5");
+    public static final IntegrityAlgorithm SHA256 = new MessageDigestAlgorithm(NAME_SHA256, "SHA-256");
+    public static final IntegrityAlgorithm CRC32C = new Crc32cAlgorithm();
+
+    public interface Digest {
+        void update(byte[] data, int offset, int length);
+
+        /**
+         * 返回十六进制摘要，之后重新从头计算
+         */
+        String finish();
+    }
+
+    /**
+     * @param name 为空时按 md5 处理
+     */
+    public static IntegrityAlgorithm forName(String name) {
+        if (null == name || 0 == name.length() || NAME_MD5.equalsIgnoreCase(name)) {
+            return MD5;
+        } else if (NAME_SHA256.equalsIgnoreCase(name)) {
+            return SHA256;
+        } else if (NAME_CRC32C.equalsIgnoreCase(name)) {
+            return CRC32C;
+        }
+        throw new IllegalArgumentException("unknown integrity algorithm: " + name);
+    }
+
+    public abstract String getName();
+
+    public abstract Digest newDigest();
+
+    public boolean matches(String expected, String actual) {
+        return (null != expected) && (null != actual) && expected.equalsIgnoreCase(actual);
+    }
+
+    /**
+     * @return 文件不存在或读取失败时返回 null
+     */
+    public String digestFile(File file, BufferPool bufferPool) {
+        if (null == file || !file.isFile()) {
+            return null;
+        }
+
+        Digest digest = newDigest();
+        byte[] buffer = bufferPool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        FileInputStream in = null;
+        int len;
+        try {
+            in = new FileInputStream(file);
+            while ((len = in.read(buffer, 0, buffer.length)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+            return digest.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            bufferPool.release(buffer);
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    private static class MessageDigestAlgorithm extends IntegrityAlgorithm {
+        private final String name;
+        private final String jcaName;
+
+        MessageDigestAlgorithm(String name, String jcaName) {
+            this.name = name;
+            this.jcaName = jcaName;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public Digest newDigest() {
+            final MessageDigest messageDigest;
+            try {
+                messageDigest = MessageDigest.getInstance(jcaName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Digest() {
+                @Override
+                public void update(byte[] data, int offset, int length) {
+                    messageDigest.update(data, offset, length);
+                }
+
+                @Override
+                public String finish() {
+                    BigInteger bigInt = new BigInteger(1, messageDigest.digest());
+                    return String.format("%0" + (messageDigest.getDigestLength()*2) + "x", bigInt);
+                }
+            };
+        }
+    }
+
+    private static class Crc32cAlgorithm extends IntegrityAlgorithm {
+        @Override
+        public String getName() {
+            return NAME_CRC32C;
+        }
+
+        @Override
+        public Digest newDigest() {
+            final Crc32c crc32c = new Crc32c();
+            return new Digest() {
+                @Override
+                public void update(byte[] data, int offset, int length) {
+                    crc32c.update(data, offset, length);
+                }
+
+                @Override
+                public String finish() {
+                    String value = String.format("%08x", crc32c.getValue());
+                    crc32c.reset();
+                    return value;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.darren.download.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 把分段直接写到内存映射的文件区域，每次只映射不超过 windowSize 的窗口，超过 4G 的文件也可以使用。
+ * 窗口写满或 checkpoint 时 force 映射区域。
+ */
+public class MappedSegmentWriter implements SegmentWriter {
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private final long end;
+    private final long windowSize;
+    private final long checkpointBytes;
+    private final long checkpointInterval;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long durablePosition;
+    private long lastCheckpointTime;
+
+    /**
+     * @param end 分段最后一个字节的位置，映射窗口不会超过它
+     */
+    public MappedSegmentWriter(String savePath, long position, long end, long windowSize,
+                               long checkpointBytes, long checkpointInterval) throws IOException {
+        this.file = new RandomAccessFile(savePath, "rw");
+        this.fileChannel = file.getChannel();
+        this.end = end;
+        this.windowSize = Math.max(BufferPool.MAX_BUFFER_SIZE, Math.min(windowSize, Integer.MAX_VALUE));
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointInterval = checkpointInterval;
+        this.position = position;
+        this.durablePosition = position;
+        this.lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (0 < length) {
+            if (null == window || !window.hasRemaining()) {
+                mapNextWindow();
+            }
+            int count = Math.min(length, window.remaining());
+            window.put(data, offset, count);
+            offset += count;
+            length -= count;
+            position += count;
+        }
+    }
+
+    @Override
+    public boolean shouldCheckpoint() {
+        long pending = position - durablePosition;
+        return (checkpointBytes <= pending)
+                || ((0 < pending) && (checkpointInterval <= (System.currentTimeMillis() - lastCheckpointTime)));
+    }
+
+    @Override
+    public long checkpoint() throws IOException {
+        if (null != window && durablePosition != position) {
+            window.force();
+            durablePosition = position;
+        }
+        lastCheckpointTime = System.currentTimeMillis();
+        return durablePosition;
+    }
+
+    @Override
+    public long flush() throws IOException {
+        return checkpoint();
+    }
+
+    @Override
+    public long getPosition() {
+        return this.position;
+    }
+
+    @Override
+    public long getDurablePosition() {
+        return this.durablePosition;
+    }
+
+    private void mapNextWindow() throws IOException {
+        if (position > end) {
+            throw new IOException("write beyond segment end: " + end);
+        }
+        // 换窗口前先把旧窗口落盘，旧的映射由 GC 回收
+        checkpoint();
+        windowStart = position;
+        long size = Math.min(windowSize, end - windowStart + 1);
+        window = fileChannel.map(FileChannel.MapMode.READ_WRITE, windowStart, size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+}
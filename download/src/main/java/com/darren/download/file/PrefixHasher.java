@@ -0,0 +1,131 @@
+package com.darren.download.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 下载过程中对文件已经连续下载完成的前缀增量计算摘要，下载结束时只需要再读最后一小段。
+ * 有分块清单时同时按清单的算法计算每一块的摘要：清单中没有的记录下来，与清单不一致的记为损坏的块。
+ */
+public class PrefixHasher {
+    private final String savePath;
+    private final BufferPool bufferPool;
+    private final IntegrityAlgorithm algorithm;
+    private final BlockManifest blockManifest;
+    private final long fileSize;
+    private final List<Integer> badBlockList;
+    private IntegrityAlgorithm.Digest digest;
+    private IntegrityAlgorithm.Digest blockDigest;
+    private volatile long hashedPosition;
+
+    public PrefixHasher(String savePath, BufferPool bufferPool) {
+        this(savePath, bufferPool, IntegrityAlgorithm.MD5, null, 0);
+    }
+
+    public PrefixHasher(String savePath, BufferPool bufferPool, BlockManifest blockManifest, long fileSize) {
+        this(savePath, bufferPool, IntegrityAlgorithm.MD5, blockManifest, fileSize);
+    }
+
+    /**
+     * @param algorithm 整个文件的摘要算法，分块摘要使用清单自己的算法
+     */
+    public PrefixHasher(String savePath, BufferPool bufferPool, IntegrityAlgorithm algorithm,
+                        BlockManifest blockManifest, long fileSize) {
+        this.savePath = savePath;
+        this.bufferPool = bufferPool;
+        this.algorithm = algorithm;
+        this.blockManifest = blockManifest;
+        this.fileSize = fileSize;
+        this.badBlockList = new ArrayList<>();
+        reset();
+    }
+
+    public BlockManifest getBlockManifest() {
+        return this.blockManifest;
+    }
+
+    /**
+     * @return 已经计算过的块中与清单不一致的块
+     */
+    public synchronized List<Integer> getBadBlockList() {
+        return new ArrayList<>(badBlockList);
+    }
+
+    public long getHashedPosition() {
+        return this.hashedPosition;
+    }
+
+    /**
+     * 把 [hashedPosition, position) 的内容加入摘要，position 之前的数据必须已经下载完成并且不会再改变
+     */
+    public synchronized void update(long position) throws IOException {
+        if (position <= hashedPosition) {
+            return;
+        }
+
+        byte[] buffer = bufferPool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        RandomAccessFile file = new RandomAccessFile(savePath, "r");
+        try {
+            FileChannel fileChannel = file.getChannel();
+            while (hashedPosition < position) {
+                long limit = position;
+                int blockIndex = -1;
+                if (null != blockManifest) {
+                    blockIndex = (int) (hashedPosition / blockManifest.getBlockSize());
+                    limit = Math.min(limit, blockManifest.getBlockEnd(blockIndex, fileSize) + 1);
+                }
+
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, limit - hashedPosition));
+                int length = fileChannel.read(byteBuffer, hashedPosition);
+                if (-1 == length) {
+                    throw new IOException("unexpected end of file at " + hashedPosition);
+                }
+                digest.update(buffer, 0, length);
+                hashedPosition += length;
+
+                if (null != blockManifest) {
+                    blockDigest.update(buffer, 0, length);
+                    if (hashedPosition == blockManifest.getBlockEnd(blockIndex, fileSize) + 1) {
+                        onBlockHashed(blockIndex, blockDigest.finish());
+                    }
+                }
+            }
+        } finally {
+            file.close();
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void onBlockHashed(int blockIndex, String hash) {
+        String expected = blockManifest.getHash(blockIndex);
+        if (null == expected) {
+            blockManifest.setHash(blockIndex, hash);
+        } else if (!expected.equalsIgnoreCase(hash) && !badBlockList.contains(blockIndex)) {
+            badBlockList.add(blockIndex);
+        }
+    }
+
+    /**
+     * 补齐到 size 后返回整个文件的摘要，之后重新从头计算
+     */
+    public synchronized String finish(long size) throws IOException {
+        update(size);
+        String hash = digest.finish();
+        hashedPosition = 0;
+        return hash;
+    }
+
+    /**
+     * 重新从头计算，已经发现的损坏块一起清除
+     */
+    public synchronized void reset() {
+        digest = algorithm.newDigest();
+        blockDigest = (null != blockManifest) ? blockManifest.getAlgorithm().newDigest() : null;
+        badBlockList.clear();
+        hashedPosition = 0;
+    }
+}
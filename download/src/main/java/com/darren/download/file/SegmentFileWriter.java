@@ -0,0 +1,96 @@
+package com.darren.download.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 分段写文件：数据先合并到缓冲区，再用 FileChannel 按位置写入，
+ * 每写满 checkpointBytes 或间隔 checkpointInterval 做一次 force，只有 force 过的数据才算进度。
+ */
+public class SegmentFileWriter implements SegmentWriter {
+    private final BufferPool bufferPool;
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private final ByteBuffer buffer;
+    private final long checkpointBytes;
+    private final long checkpointInterval;
+
+    private long position;
+    private long durablePosition;
+    private long lastCheckpointTime;
+
+    public SegmentFileWriter(String savePath, long position, BufferPool bufferPool, int bufferSize,
+                             long checkpointBytes, long checkpointInterval) throws IOException {
+        this.file = new RandomAccessFile(savePath, "rw");
+        this.fileChannel = file.getChannel();
+        this.bufferPool = bufferPool;
+        this.buffer = ByteBuffer.wrap(bufferPool.acquire(bufferSize));
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointInterval = checkpointInterval;
+        this.position = position;
+        this.durablePosition = position;
+        this.lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (0 < length) {
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+        }
+    }
+
+    @Override
+    public boolean shouldCheckpoint() {
+        long pending = position + buffer.position() - durablePosition;
+        return (checkpointBytes <= pending)
+                || ((0 < pending) && (checkpointInterval <= (System.currentTimeMillis() - lastCheckpointTime)));
+    }
+
+    @Override
+    public long checkpoint() throws IOException {
+        flushBuffer();
+        if (durablePosition != position) {
+            fileChannel.force(false);
+            durablePosition = position;
+        }
+        lastCheckpointTime = System.currentTimeMillis();
+        return durablePosition;
+    }
+
+    @Override
+    public long flush() throws IOException {
+        return checkpoint();
+    }
+
+    @Override
+    public long getPosition() {
+        return position + buffer.position();
+    }
+
+    @Override
+    public long getDurablePosition() {
+        return this.durablePosition;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        bufferPool.release(buffer.array());
+        file.close();
+    }
+}
@@ -0,0 +1,41 @@
+package com.darren.download.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 分段下载写文件的方式，只有 checkpoint 返回的位置之前的数据保证已经落盘
+ */
+public interface SegmentWriter extends Closeable {
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * @return 是否到了需要 checkpoint 的时候
+     */
+    boolean shouldCheckpoint();
+
+    /**
+     * 把写入的数据 force 到存储
+     * @return 已经落盘的位置（不含）
+     */
+    long checkpoint() throws IOException;
+
+    /**
+     * 等待写入的全部数据落盘
+     * @return 已经落盘的位置（不含）
+     */
+    long flush() throws IOException;
+
+    /**
+     * @return 已经写入（不一定落盘）的位置（不含）
+     */
+    long getPosition();
+
+    long getDurablePosition();
+
+    /**
+     * 只关闭文件，没有 checkpoint 的数据不保证写入
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,335 @@
+package com.darren.download.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个下载文件共用的后台写线程：各分段把写满的缓冲区放入有界队列后继续读网络，
+ * 写线程把位置相邻的缓冲区合并成一次顺序写，定期 force 后更新各分段已经落盘的位置。
+ * 没有分段在写时写线程退出，有新的分段时再启动。
+ */
+public class WriteBehindFileWriter {
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final String savePath;
+    private final BufferPool bufferPool;
+    private final int bufferSize;
+    private final long checkpointBytes;
+    private final long checkpointInterval;
+    private final ArrayBlockingQueue<Chunk> queue;
+
+    private Thread writerThread;
+    private RandomAccessFile file;
+    private int openCount;
+    private volatile IOException error;
+
+    public WriteBehindFileWriter(String savePath, BufferPool bufferPool, int bufferSize, int queueSize,
+                                 long checkpointBytes, long checkpointInterval) {
+        this.savePath = savePath;
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointInterval = checkpointInterval;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    }
+
+    public synchronized SegmentWriter open(long position) throws IOException {
+        if (null == writerThread) {
+            error = null;
+            file = new RandomAccessFile(savePath, "rw");
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWriter();
+                }
+            }, "WriteBehindFileWriter");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        openCount++;
+        return new Segment(position);
+    }
+
+    private synchronized void onSegmentClosed() {
+        openCount--;
+        notifyAll();
+    }
+
+    /**
+     * @return 没有分段在写并且队列已经写完时返回 true，写线程退出
+     */
+    private synchronized boolean exitIfIdle() {
+        if (0 < openCount || !queue.isEmpty()) {
+            return false;
+        }
+        writerThread = null;
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private void runWriter() {
+        final FileChannel fileChannel = file.getChannel();
+        final List<Chunk> batch = new ArrayList<>();
+        final List<Segment> dirtySegments = new ArrayList<>();
+        long unforcedBytes = 0;
+        long lastForceTime = System.currentTimeMillis();
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = queue.poll(Math.max(1, checkpointInterval), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                chunk = null;
+            }
+
+            boolean isSyncRequested = false;
+            if (null != chunk) {
+                batch.add(chunk);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                try {
+                    unforcedBytes += writeBatch(fileChannel, batch);
+                } catch (IOException e) {
+                    onError(e);
+                }
+                for (Chunk item : batch) {
+                    bufferPool.release(item.data);
+                    // 写失败后不再推进位置，等待的分段从 error 得到失败
+                    if (null == error) {
+                        item.segment.writtenPosition = item.offset + item.length;
+                    }
+                    if (!dirtySegments.contains(item.segment)) {
+                        dirtySegments.add(item.segment);
+                    }
+                    isSyncRequested |= item.isSync;
+                }
+                batch.clear();
+            }
+
+            long currentTime = System.currentTimeMillis();
+            if (!dirtySegments.isEmpty() && (isSyncRequested || checkpointBytes <= unforcedBytes
+                    || checkpointInterval <= (currentTime - lastForceTime))) {
+                try {
+                    fileChannel.force(false);
+                } catch (IOException e) {
+                    onError(e);
+                }
+                synchronized (this) {
+                    if (null == error) {
+                        for (Segment segment : dirtySegments) {
+                            segment.durablePosition = segment.writtenPosition;
+                        }
+                    }
+                    notifyAll();
+                }
+                dirtySegments.clear();
+                unforcedBytes = 0;
+                lastForceTime = currentTime;
+            }
+
+            if (null == chunk && dirtySegments.isEmpty() && exitIfIdle()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 按位置排序后把首尾相接的缓冲区合并成一次写
+     * @return 写入的字节数
+     */
+    private long writeBatch(FileChannel fileChannel, List<Chunk> batch) throws IOException {
+        if (null != error) {
+            return 0;
+        }
+
+        Collections.sort(batch, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk chunk1, Chunk chunk2) {
+                return Long.compare(chunk1.offset, chunk2.offset);
+            }
+        });
+
+        long total = 0;
+        int index = 0;
+        while (index < batch.size()) {
+            int last = index;
+            long end = batch.get(index).offset + batch.get(index).length;
+            while (last+1 < batch.size() && end == batch.get(last+1).offset) {
+                last++;
+                end += batch.get(last).length;
+            }
+
+            ByteBuffer[] buffers = new ByteBuffer[last-index+1];
+            for (int i = index; i <= last; ++i) {
+                buffers[i-index] = ByteBuffer.wrap(batch.get(i).data, 0, batch.get(i).length);
+            }
+            long offset = batch.get(index).offset;
+            long length = end - offset;
+            // 只有写线程使用这个 channel，可以先设置位置再做聚集写
+            fileChannel.position(offset);
+            long written = 0;
+            while (written < length) {
+                written += fileChannel.write(buffers);
+            }
+            total += length;
+            index = last+1;
+        }
+        return total;
+    }
+
+    private void onError(IOException e) {
+        e.printStackTrace();
+        synchronized (this) {
+            if (null == error) {
+                error = e;
+            }
+            notifyAll();
+        }
+    }
+
+    private void checkError() throws IOException {
+        IOException exception = error;
+        if (null != exception) {
+            throw new IOException("write behind failed: " + exception.getMessage(), exception);
+        }
+    }
+
+    private static class Chunk {
+        final Segment segment;
+        final long offset;
+        final byte[] data;
+        final int length;
+        final boolean isSync;
+
+        Chunk(Segment segment, long offset, byte[] data, int length, boolean isSync) {
+            this.segment = segment;
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+            this.isSync = isSync;
+        }
+    }
+
+    private class Segment implements SegmentWriter {
+        private byte[] buffer;
+        private int bufferLength;
+        private long bufferOffset;
+        private volatile long writtenPosition;
+        private volatile long durablePosition;
+        private long reportedPosition;
+        private long lastCheckpointTime;
+        private boolean isClosed;
+
+        Segment(long position) {
+            this.bufferOffset = position;
+            this.writtenPosition = position;
+            this.durablePosition = position;
+            this.reportedPosition = position;
+            this.lastCheckpointTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            checkError();
+            while (0 < length) {
+                if (null == buffer) {
+                    buffer = bufferPool.acquire(bufferSize);
+                }
+                int count = Math.min(length, buffer.length - bufferLength);
+                System.arraycopy(data, offset, buffer, bufferLength, count);
+                bufferLength += count;
+                offset += count;
+                length -= count;
+                if (buffer.length == bufferLength) {
+                    enqueue(false);
+                }
+            }
+        }
+
+        private void enqueue(boolean isSync) throws IOException {
+            Chunk chunk = new Chunk(this, bufferOffset, (null != buffer) ? buffer : new byte[0], bufferLength, isSync);
+            try {
+                // 写线程跟不上时在这里阻塞，限制缓存的数据量
+                queue.put(chunk);
+            } catch (InterruptedException e) {
+                // 没有放入队列，缓冲区仍然属于这个分段，close 时归还
+                throw new InterruptedIOException("thread interrupted");
+            }
+            bufferOffset += bufferLength;
+            buffer = null;
+            bufferLength = 0;
+        }
+
+        /**
+         * force 由写线程完成，这里按与其他 SegmentWriter 相同的字节数和时间间隔上报新落盘的进度
+         */
+        @Override
+        public boolean shouldCheckpoint() {
+            long pending = durablePosition - reportedPosition;
+            return (checkpointBytes <= pending)
+                    || ((0 < pending) && (checkpointInterval <= (System.currentTimeMillis() - lastCheckpointTime)));
+        }
+
+        /**
+         * 不等待写线程，只返回目前已经落盘的位置
+         */
+        @Override
+        public long checkpoint() throws IOException {
+            checkError();
+            reportedPosition = durablePosition;
+            lastCheckpointTime = System.currentTimeMillis();
+            return reportedPosition;
+        }
+
+        @Override
+        public long flush() throws IOException {
+            enqueue(true);
+            long position = bufferOffset;
+            synchronized (WriteBehindFileWriter.this) {
+                while (durablePosition < position && null == error) {
+                    try {
+                        WriteBehindFileWriter.this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("thread interrupted");
+                    }
+                }
+            }
+            return checkpoint();
+        }
+
+        @Override
+        public long getPosition() {
+            return bufferOffset + bufferLength;
+        }
+
+        @Override
+        public long getDurablePosition() {
+            return this.durablePosition;
+        }
+
+        /**
+         * 已经放入队列的数据仍然会写入文件
+         */
+        @Override
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            bufferPool.release(buffer);
+            buffer = null;
+            onSegmentClosed();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.darren.download.net;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 host:port 保存空闲的 keep-alive 连接，供获取文件信息、分段以及重试或拆分出来的分段复用。
+ * 只管理 SocketChannelTransport 和 NioDownloadEngine 的连接，HttpURLConnection 的连接由系统缓存管理
+ */
+public class ConnectionPool {
+    private final int maxIdlePerHost;
+    private final long keepAliveTime;
+    private final HashMap<String, ArrayDeque<IdleConnection>> idleMap;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+
+    public ConnectionPool(int maxIdlePerHost, long keepAliveTime) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.keepAliveTime = keepAliveTime;
+        this.idleMap = new HashMap<>();
+        this.hitCount = new AtomicLong(0);
+        this.missCount = new AtomicLong(0);
+    }
+
+    /**
+     * @return 空闲连接，没有可用连接时返回 null，由调用方自己新建连接
+     */
+    public SocketChannel acquire(String host, int port) {
+        SocketChannel channel = null;
+        synchronized (this) {
+            evictIdle(System.currentTimeMillis());
+            ArrayDeque<IdleConnection> idleQueue = idleMap.get(key(host, port));
+            while (null != idleQueue && !idleQueue.isEmpty()) {
+                IdleConnection connection = idleQueue.pollLast();
+                if (connection.channel.isOpen() && connection.channel.isConnected()) {
+                    channel = connection.channel;
+                    break;
+                }
+            }
+        }
+
+        if (null == channel) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return channel;
+    }
+
+    /**
+     * 归还一个响应已经完整读完的连接，超出每个 host 的上限时直接关闭
+     */
+    public void release(String host, int port, SocketChannel channel) {
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        synchronized (this) {
+            long currentTime = System.currentTimeMillis();
+            evictIdle(currentTime);
+            String key = key(host, port);
+            ArrayDeque<IdleConnection> idleQueue = idleMap.get(key);
+            if (null == idleQueue) {
+                idleQueue = new ArrayDeque<>();
+                idleMap.put(key, idleQueue);
+            }
+            if (idleQueue.size() < maxIdlePerHost) {
+                idleQueue.addLast(new IdleConnection(channel, currentTime));
+                return;
+            }
+        }
+        closeQuietly(channel);
+    }
+
+    public synchronized void evictAll() {
+        for (ArrayDeque<IdleConnection> idleQueue : idleMap.values()) {
+            for (IdleConnection connection : idleQueue) {
+                closeQuietly(connection.channel);
+            }
+        }
+        idleMap.clear();
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<IdleConnection> idleQueue : idleMap.values()) {
+            count += idleQueue.size();
+        }
+        return count;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private void evictIdle(long currentTime) {
+        Iterator<Map.Entry<String, ArrayDeque<IdleConnection>>> entries = idleMap.entrySet().iterator();
+        while (entries.hasNext()) {
+            ArrayDeque<IdleConnection> idleQueue = entries.next().getValue();
+            // 队首是最早放回的连接
+            while (!idleQueue.isEmpty() && keepAliveTime <= (currentTime - idleQueue.peekFirst().idleSince)) {
+                closeQuietly(idleQueue.pollFirst().channel);
+            }
+            if (idleQueue.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class IdleConnection {
+        final SocketChannel channel;
+        final long idleSince;
+
+        IdleConnection(SocketChannel channel, long idleSince) {
+            this.channel = channel;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.darren.download.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+
+public interface DownloadConnection {
+    int getResponseCode() throws IOException;
+    String getHeaderField(String name);
+    long getContentLength();
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * 传输层支持时返回可以直接读取正文的 channel，否则返回 null
+     */
+    ReadableByteChannel getChannel() throws IOException;
+
+    /**
+     * 正文已经完整读完，连接可以留给下一个请求复用
+     */
+    void release();
+
+    /**
+     * 放弃连接，不再复用
+     */
+    void close();
+}
@@ -0,0 +1,23 @@
+package com.darren.download.net;
+
+import com.darren.download.DownloadConfig;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * 下载使用的传输层，默认实现是 HttpUrlConnectionTransport，
+ * 可以通过 DownloadConfig.Builder.setTransport 换成其他实现
+ */
+public interface DownloadTransport {
+    /**
+     * 获取文件信息的请求，响应需要带上文件长度以及是否支持分段
+     */
+    DownloadConnection probe(URL url, DownloadConfig config) throws IOException;
+
+    /**
+     * @param start 小于 0 时不带 Range 请求整个文件
+     * @param end 小于 0 时请求 start 之后的全部内容
+     */
+    DownloadConnection get(URL url, long start, long end, DownloadConfig config) throws IOException;
+}
@@ -0,0 +1,133 @@
+package com.darren.download.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 直接基于 socket 收发 HTTP/1.1 时使用的请求拼装与响应头解析
+ */
+public class HttpResponseHead {
+    public static final int MAX_HEAD_SIZE = 16*1024;
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private final int responseCode;
+    private final boolean isHttp11;
+    private final Map<String, String> headerMap;
+
+    private HttpResponseHead(int responseCode, boolean isHttp11, Map<String, String> headerMap) {
+        this.responseCode = responseCode;
+        this.isHttp11 = isHttp11;
+        this.headerMap = headerMap;
+    }
+
+    public int getResponseCode() {
+        return this.responseCode;
+    }
+
+    public String getHeaderField(String name) {
+        return headerMap.get(name.toLowerCase(Locale.US));
+    }
+
+    public long getContentLength() {
+        String contentLength = getHeaderField("Content-Length");
+        if (null == contentLength) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isChunked() {
+        String transferEncoding = getHeaderField("Transfer-Encoding");
+        return (null != transferEncoding) && transferEncoding.toLowerCase(Locale.US).contains("chunked");
+    }
+
+    public boolean isKeepAlive() {
+        String connection = getHeaderField("Connection");
+        if (null == connection) {
+            return isHttp11;
+        }
+        return !"close".equalsIgnoreCase(connection.trim());
+    }
+
+    /**
+     * 服务器要求降低请求频率的响应码
+     */
+    public static boolean isServerBusy(int responseCode) {
+        return HTTP_TOO_MANY_REQUESTS == responseCode || HttpURLConnection.HTTP_UNAVAILABLE == responseCode;
+    }
+
+    /**
+     * @return 响应头结束后正文的起始下标，数据中还没有完整的响应头时返回 -1
+     */
+    public static int findHeadEnd(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i+3 < end; ++i) {
+            if ('\r' == buffer[i] && '\n' == buffer[i+1] && '\r' == buffer[i+2] && '\n' == buffer[i+3]) {
+                return i+4;
+            }
+        }
+        return -1;
+    }
+
+    public static HttpResponseHead parse(byte[] buffer, int offset, int length) throws IOException {
+        String head = new String(buffer, offset, length, CHARSET);
+        String[] lines = head.split("\r\n");
+        if (0 == lines.length || !lines[0].startsWith("HTTP/")) {
+            throw new IOException("bad status line: " + (0 == lines.length ? "" : lines[0]));
+        }
+
+        String[] statusLine = lines[0].split(" ", 3);
+        if (2 > statusLine.length) {
+            throw new IOException("bad status line: " + lines[0]);
+        }
+        final int responseCode;
+        try {
+            responseCode = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + lines[0]);
+        }
+
+        Map<String, String> headerMap = new HashMap<>();
+        for (int i = 1; i < lines.length; ++i) {
+            int index = lines[i].indexOf(':');
+            if (0 < index) {
+                headerMap.put(lines[i].substring(0, index).trim().toLowerCase(Locale.US), lines[i].substring(index+1).trim());
+            }
+        }
+
+        return new HttpResponseHead(responseCode, "HTTP/1.1".equals(statusLine[0]), headerMap);
+    }
+
+    public static byte[] buildRangeRequest(URL url, String method, long start, long end, boolean keepAlive) {
+        StringBuilder builder = new StringBuilder();
+        String path = url.getFile();
+        builder.append(method).append(' ').append((null == path || path.isEmpty()) ? "/" : path).append(" HTTP/1.1\r\n");
+        builder.append("Host: ").append(url.getHost());
+        if (-1 != url.getPort() && url.getDefaultPort() != url.getPort()) {
+            builder.append(':').append(url.getPort());
+        }
+        builder.append("\r\n");
+        if (0 <= start) {
+            builder.append("Range: bytes=").append(start).append('-');
+            if (0 <= end) {
+                builder.append(end);
+            }
+            builder.append("\r\n");
+        }
+        builder.append("Accept-Encoding: identity\r\n");
+        builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        builder.append("\r\n");
+        return builder.toString().getBytes(CHARSET);
+    }
+}
@@ -0,0 +1,91 @@
+package com.darren.download.net;
+
+import com.darren.download.DownloadConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 基于 HttpURLConnection 的默认传输层。
+ * 空闲连接由系统的 keep-alive 缓存持有，ConnectionPool 管不到，也不计入它的命中次数；
+ * 缓存上限由应用自己通过 http.keepAlive、http.maxConnections 设置，库里不修改这些全局属性。
+ * 需要由连接池控制并统计复用时使用 SocketChannelTransport 或 NioDownloadEngine。
+ */
+public class HttpUrlConnectionTransport implements DownloadTransport {
+
+    @Override
+    public DownloadConnection probe(URL url, DownloadConfig config) throws IOException {
+        // 只请求 1 个字节，读完后连接可以留给 keep-alive 复用
+        return get(url, 0, 0, config);
+    }
+
+    @Override
+    public DownloadConnection get(URL url, long start, long end, DownloadConfig config) throws IOException {
+        HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        httpURLConnection.setConnectTimeout(config.getConnectTimeout());
+        httpURLConnection.setReadTimeout(config.getReadTimeout());
+        httpURLConnection.setRequestMethod(config.getMethod());
+        httpURLConnection.setRequestProperty("Accept-Encoding", "identity");
+        if (0 <= start) {
+            httpURLConnection.setRequestProperty("Range", "bytes=" + start + "-" + ((0 <= end) ? String.valueOf(end) : ""));
+        }
+        return new HttpUrlDownloadConnection(httpURLConnection);
+    }
+
+    private static class HttpUrlDownloadConnection implements DownloadConnection {
+        private final HttpURLConnection httpURLConnection;
+        private InputStream inputStream;
+
+        HttpUrlDownloadConnection(HttpURLConnection httpURLConnection) {
+            this.httpURLConnection = httpURLConnection;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return httpURLConnection.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return httpURLConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return httpURLConnection.getContentLength();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (null == inputStream) {
+                inputStream = httpURLConnection.getInputStream();
+            }
+            return inputStream;
+        }
+
+        @Override
+        public ReadableByteChannel getChannel() {
+            return null;
+        }
+
+        @Override
+        public void release() {
+            // 不调用 disconnect，读完并关闭输入流后连接会回到 keep-alive 缓存
+            if (null != inputStream) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    httpURLConnection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            httpURLConnection.disconnect();
+        }
+    }
+}
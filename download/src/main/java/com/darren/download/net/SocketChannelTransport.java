@@ -0,0 +1,329 @@
+package com.darren.download.net;
+
+import com.darren.download.DownloadConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 直接基于 SocketChannel 收发 HTTP/1.1 的传输层，getChannel 返回可以交给 FileChannel.transferFrom 的正文 channel。
+ * 只支持 http，其他协议（包括重定向到 https）交给 HttpUrlConnectionTransport，这时 getChannel 返回 null，
+ * DownloadConfig 打开 transferFromChannel 也会退回到流式读取。
+ */
+public class SocketChannelTransport implements DownloadTransport {
+    private static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+    private static final long DEFAULT_KEEP_ALIVE_TIME = 30000;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+    private final ConnectionPool connectionPool;
+    private final DownloadTransport fallbackTransport;
+
+    public SocketChannelTransport() {
+        this(new ConnectionPool(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_TIME));
+    }
+
+    /**
+     * @param connectionPool 可以与 NioDownloadEngine 共用同一个连接池
+     */
+    public SocketChannelTransport(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        this.fallbackTransport = new HttpUrlConnectionTransport();
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
+    @Override
+    public DownloadConnection probe(URL url, DownloadConfig config) throws IOException {
+        return get(url, 0, 0, config);
+    }
+
+    /**
+     * 跟随 3xx 重定向，和 HttpURLConnection 一样每次请求都重新走一遍重定向
+     */
+    @Override
+    public DownloadConnection get(URL url, long start, long end, DownloadConfig config) throws IOException {
+        for (int i = 0; i <= MAX_REDIRECTS; ++i) {
+            if (!"http".equalsIgnoreCase(url.getProtocol())) {
+                return fallbackTransport.get(url, start, end, config);
+            }
+
+            SocketChannelConnection connection = execute(url, start, end, config);
+            URL location = connection.getRedirectLocation(url);
+            if (null == location) {
+                return connection;
+            }
+            // 重定向响应没有正文时连接可以继续复用
+            connection.release();
+            url = location;
+        }
+        throw new ProtocolException("too many redirects");
+    }
+
+    private SocketChannelConnection execute(URL url, long start, long end, DownloadConfig config) throws IOException {
+        final String host = url.getHost();
+        final int port = (-1 == url.getPort()) ? url.getDefaultPort() : url.getPort();
+        final byte[] request = HttpResponseHead.buildRangeRequest(url, config.getMethod(), start, end, null != connectionPool);
+
+        SocketChannel pooledChannel = (null != connectionPool) ? connectionPool.acquire(host, port) : null;
+        if (null != pooledChannel) {
+            SocketChannelConnection connection = new SocketChannelConnection(host, port, pooledChannel, config.getReadTimeout());
+            try {
+                connection.execute(request);
+                return connection;
+            } catch (IOException e) {
+                // 复用的连接可能已经被服务器关闭，换一个新连接重试
+                connection.close();
+            }
+        }
+
+        SocketChannelConnection connection = new SocketChannelConnection(host, port, SocketChannel.open(), config.getReadTimeout());
+        try {
+            connection.connect(config.getConnectTimeout());
+            connection.execute(request);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private class SocketChannelConnection implements DownloadConnection {
+        private final String host;
+        private final int port;
+        private final SocketChannel socketChannel;
+        private final long readTimeout;
+        private Selector selector;
+        private HttpResponseHead responseHead;
+        private ByteBuffer headBuffer;
+        private long bodyRemaining;
+        private BodyChannel bodyChannel;
+        private InputStream inputStream;
+
+        SocketChannelConnection(String host, int port, SocketChannel socketChannel, long readTimeout) {
+            this.host = host;
+            this.port = port;
+            this.socketChannel = socketChannel;
+            this.readTimeout = readTimeout;
+        }
+
+        void connect(long connectTimeout) throws IOException {
+            socketChannel.configureBlocking(false);
+            if (!socketChannel.connect(new InetSocketAddress(host, port))) {
+                await(SelectionKey.OP_CONNECT, connectTimeout);
+                while (!socketChannel.finishConnect()) {
+                    await(SelectionKey.OP_CONNECT, connectTimeout);
+                }
+            }
+        }
+
+        void execute(byte[] request) throws IOException {
+            socketChannel.configureBlocking(false);
+            ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+            while (requestBuffer.hasRemaining()) {
+                if (0 == socketChannel.write(requestBuffer)) {
+                    await(SelectionKey.OP_WRITE, readTimeout);
+                }
+            }
+
+            headBuffer = ByteBuffer.allocate(HttpResponseHead.MAX_HEAD_SIZE);
+            int headEnd;
+            while (-1 == (headEnd = HttpResponseHead.findHeadEnd(headBuffer.array(), 0, headBuffer.position()))) {
+                if (!headBuffer.hasRemaining()) {
+                    throw new IOException("response head too large");
+                }
+                int length = socketChannel.read(headBuffer);
+                if (-1 == length) {
+                    throw new IOException("connection closed before response head");
+                } else if (0 == length) {
+                    await(SelectionKey.OP_READ, readTimeout);
+                }
+            }
+
+            responseHead = HttpResponseHead.parse(headBuffer.array(), 0, headEnd);
+            if (responseHead.isChunked()) {
+                throw new ProtocolException("chunked response is not supported");
+            }
+            // 和响应头一起读到的正文留在 headBuffer 中
+            headBuffer.flip();
+            headBuffer.position(headEnd);
+            bodyRemaining = responseHead.getContentLength();
+        }
+
+        private void await(int ops, long timeout) throws IOException {
+            if (null == selector) {
+                selector = Selector.open();
+            }
+            SelectionKey key = socketChannel.keyFor(selector);
+            if (null == key) {
+                socketChannel.register(selector, ops);
+            } else {
+                key.interestOps(ops);
+            }
+            if (0 == selector.select(Math.max(0, timeout))) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("thread interrupted");
+                }
+                throw new SocketTimeoutException("timed out");
+            }
+            selector.selectedKeys().clear();
+        }
+
+        /**
+         * @return 3xx 响应中 Location 指向的地址，不是重定向时返回 null
+         */
+        URL getRedirectLocation(URL url) throws IOException {
+            switch (responseHead.getResponseCode()) {
+                case HttpURLConnection.HTTP_MOVED_PERM:
+                case HttpURLConnection.HTTP_MOVED_TEMP:
+                case HttpURLConnection.HTTP_SEE_OTHER:
+                case HTTP_TEMPORARY_REDIRECT:
+                case HTTP_PERMANENT_REDIRECT:
+                    String location = responseHead.getHeaderField("Location");
+                    return (null == location) ? null : new URL(url, location);
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseHead.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return responseHead.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return responseHead.getContentLength();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            if (null == inputStream) {
+                inputStream = Channels.newInputStream(getChannel());
+            }
+            return inputStream;
+        }
+
+        @Override
+        public ReadableByteChannel getChannel() {
+            if (null == bodyChannel) {
+                bodyChannel = new BodyChannel();
+            }
+            return bodyChannel;
+        }
+
+        /**
+         * 正文按 Content-Length 读完之后才放回连接池
+         */
+        @Override
+        public void release() {
+            boolean isReusable = (null != connectionPool) && (null != responseHead) && responseHead.isKeepAlive()
+                    && (0 == bodyRemaining) && !headBuffer.hasRemaining();
+            if (!isReusable) {
+                close();
+                return;
+            }
+            closeSelector();
+            connectionPool.release(host, port, socketChannel);
+        }
+
+        @Override
+        public void close() {
+            closeSelector();
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void closeSelector() {
+            if (null != selector) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                selector = null;
+            }
+        }
+
+        /**
+         * 先返回和响应头一起读到的正文，再从 socket 读取，最多读到 Content-Length
+         */
+        private class BodyChannel implements ReadableByteChannel {
+            private boolean isOpen = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (0 == bodyRemaining) {
+                    return -1;
+                }
+                if (!dst.hasRemaining()) {
+                    return 0;
+                }
+
+                int limit = dst.limit();
+                if (0 < bodyRemaining && dst.remaining() > bodyRemaining) {
+                    dst.limit(dst.position() + (int) bodyRemaining);
+                }
+                try {
+                    int length;
+                    if (headBuffer.hasRemaining()) {
+                        length = Math.min(headBuffer.remaining(), dst.remaining());
+                        ByteBuffer slice = headBuffer.slice();
+                        slice.limit(length);
+                        dst.put(slice);
+                        headBuffer.position(headBuffer.position() + length);
+                    } else {
+                        while (0 == (length = socketChannel.read(dst))) {
+                            await(SelectionKey.OP_READ, readTimeout);
+                        }
+                        if (-1 == length) {
+                            if (0 < bodyRemaining) {
+                                throw new IOException("connection closed, " + bodyRemaining + " bytes remaining");
+                            }
+                            return -1;
+                        }
+                    }
+                    if (0 < bodyRemaining) {
+                        bodyRemaining -= length;
+                    }
+                    return length;
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return isOpen;
+            }
+
+            @Override
+            public void close() {
+                isOpen = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.darren.download.nio;
+
+import com.darren.download.DownloadConfig;
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadThreadInfo;
+import com.darren.download.exception.DownloadException;
+import com.darren.download.net.ConnectionPool;
+import com.darren.download.thread.DownloadThreadListener;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用少量 selector 线程复用大量分段下载的非阻塞下载引擎，只支持 http 的 Range 请求
+ */
+public class NioDownloadEngine {
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final SelectorThread[] selectorThreads;
+    private final AtomicInteger nextIndex;
+    private final ConnectionPool connectionPool;
+    private final ExecutorService executorService;
+    private final boolean isOwnExecutor;
+
+    public NioDownloadEngine(int selectorNum) throws IOException {
+        this(selectorNum, null);
+    }
+
+    /**
+     * @param connectionPool 不为 null 时使用 keep-alive，正文完整读完的连接放回连接池复用
+     */
+    public NioDownloadEngine(int selectorNum, ConnectionPool connectionPool) throws IOException {
+        this(selectorNum, connectionPool, null);
+    }
+
+    /**
+     * @param executorService 执行打开文件、解析域名、force 和 listener 回调，为 null 时引擎自己创建
+     */
+    public NioDownloadEngine(int selectorNum, ConnectionPool connectionPool, ExecutorService executorService) throws IOException {
+        if (0 >= selectorNum) {
+            throw new IllegalArgumentException("selectorNum must bigger than 0");
+        }
+
+        this.nextIndex = new AtomicInteger(0);
+        this.connectionPool = connectionPool;
+        this.isOwnExecutor = (null == executorService);
+        this.executorService = isOwnExecutor ? Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NioDownloadEngine_worker_" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : executorService;
+        this.selectorThreads = new SelectorThread[selectorNum];
+        for (int i = 0; i < selectorNum; ++i) {
+            selectorThreads[i] = new SelectorThread("NioDownloadEngine_" + (i+1));
+            selectorThreads[i].start();
+        }
+    }
+
+    public boolean isSupported(DownloadInfo downloadInfo) {
+        try {
+            return "http".equalsIgnoreCase(new URL(downloadInfo.getUrl()).getProtocol());
+        } catch (MalformedURLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * listener 和 finishedCallback 都在 executorService 上回调，不会在调用线程或 selector 线程上回调
+     * @param finishedCallback 分段结束（成功、失败或取消）后调用一次，晚于 listener 的回调
+     */
+    public NioSegmentTransfer submit(DownloadInfo downloadInfo, DownloadThreadInfo downloadThreadInfo, DownloadConfig config,
+                                     DownloadThreadListener listener, Runnable finishedCallback) {
+        final NioSegmentTransfer transfer = new NioSegmentTransfer(downloadInfo, downloadThreadInfo, config, listener,
+                connectionPool, executorService, finishedCallback);
+        int index = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % selectorThreads.length;
+        final SelectorThread selectorThread = selectorThreads[index];
+        transfer.start(new Runnable() {
+            @Override
+            public void run() {
+                selectorThread.add(transfer);
+            }
+        });
+        return transfer;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
+    public void shutdown() {
+        for (SelectorThread selectorThread : selectorThreads) {
+            selectorThread.shutdown();
+        }
+        if (null != connectionPool) {
+            connectionPool.evictAll();
+        }
+        if (isOwnExecutor) {
+            executorService.shutdown();
+        }
+    }
+
+    private static class SelectorThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<NioSegmentTransfer> pendingQueue;
+        private volatile boolean isRunning = true;
+
+        SelectorThread(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            this.pendingQueue = new ConcurrentLinkedQueue<>();
+            setDaemon(true);
+        }
+
+        void add(NioSegmentTransfer transfer) {
+            if (!isRunning) {
+                transfer.fail(new DownloadException(DownloadException.CODE_EXCEPTION_INIT_FAILED, "NioDownloadEngine is shutdown"));
+                return;
+            }
+            pendingQueue.add(transfer);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            isRunning = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            NioSegmentTransfer transfer;
+            long selectTimeout = SELECT_TIMEOUT;
+            while (isRunning) {
+                try {
+                    selector.select(selectTimeout);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+
+                while (null != (transfer = pendingQueue.poll())) {
+                    transfer.register(selector);
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    transfer = (NioSegmentTransfer) key.attachment();
+                    // 放回连接池的空闲连接没有 attachment
+                    if (key.isValid() && null != transfer && !transfer.isFinished()) {
+                        dispatch(transfer, key);
+                    }
+                }
+
+                long currentTime = System.currentTimeMillis();
+                long nanoTime = System.nanoTime();
+                long throttleNanos = TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT);
+                for (SelectionKey key : selector.keys()) {
+                    transfer = (NioSegmentTransfer) key.attachment();
+                    if (key.isValid() && null != transfer && !transfer.isFinished()) {
+                        long waitNanos = transfer.checkThrottle(nanoTime);
+                        if (0 < waitNanos) {
+                            throttleNanos = Math.min(throttleNanos, waitNanos);
+                        }
+                        transfer.checkTimeout(currentTime);
+                    }
+                }
+                // 有被限速的分段时提前醒来恢复读取
+                selectTimeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(throttleNanos));
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                transfer = (NioSegmentTransfer) key.attachment();
+                if (null != transfer) {
+                    transfer.cancel();
+                }
+            }
+            while (null != (transfer = pendingQueue.poll())) {
+                transfer.cancel();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void dispatch(NioSegmentTransfer transfer, SelectionKey key) {
+            try {
+                transfer.onSelected(key);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                transfer.fail(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
+            }
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.darren.download.nio;
+
+import com.darren.download.DownloadConfig;
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadThreadInfo;
+import com.darren.download.exception.DownloadException;
+import com.darren.download.net.ConnectionPool;
+import com.darren.download.net.HttpResponseHead;
+import com.darren.download.thread.DownloadThreadListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个分段在 selector 线程上的非阻塞下载过程，回调与 DownloadThreadRunnable 保持一致。
+ * selector 线程只做非阻塞的读写；打开文件、解析域名、force 和 listener 回调按顺序交给 executor 执行，
+ * 不会因为一个分段的回调或磁盘同步卡住同一个 selector 上的其他分段。
+ */
+public class NioSegmentTransfer {
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_SENDING = 1;
+    private static final int STATE_READING_HEAD = 2;
+    private static final int STATE_READING_BODY = 3;
+
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private final DownloadInfo downloadInfo;
+    private final DownloadThreadInfo downloadThreadInfo;
+    private final DownloadConfig config;
+    private final DownloadThreadListener listener;
+    private final Runnable finishedCallback;
+    private final ConnectionPool connectionPool;
+    private final Executor executor;
+    private final AtomicBoolean isFinished;
+    private final ConcurrentLinkedQueue<Runnable> taskQueue;
+    private final AtomicBoolean isTaskRunning;
+
+    private Selector selector;
+    private Thread selectorThread;
+    private URL url;
+    private String host;
+    private int port;
+    private InetSocketAddress address;
+    private boolean isReused;
+    private HttpResponseHead responseHead;
+    private long bodyLength;
+    private SocketChannel socketChannel;
+    private FileChannel fileChannel;
+    private ByteBuffer requestBuffer;
+    private ByteBuffer readBuffer;
+    private int state;
+    private long position;
+    private long checkpointPosition;
+    private long lastCheckpointTime;
+    private long lastActiveTime;
+    private long throttleUntil;
+
+    public NioSegmentTransfer(DownloadInfo downloadInfo, DownloadThreadInfo downloadThreadInfo, DownloadConfig config,
+                              DownloadThreadListener listener, ConnectionPool connectionPool, Executor executor,
+                              Runnable finishedCallback) {
+        this.downloadInfo = downloadInfo;
+        this.downloadThreadInfo = downloadThreadInfo;
+        this.config = config;
+        this.listener = listener;
+        this.connectionPool = connectionPool;
+        this.executor = executor;
+        this.finishedCallback = finishedCallback;
+        this.isFinished = new AtomicBoolean(false);
+        this.taskQueue = new ConcurrentLinkedQueue<>();
+        this.isTaskRunning = new AtomicBoolean(false);
+    }
+
+    public boolean isFinished() {
+        return isFinished.get();
+    }
+
+    /**
+     * 结束下载但不回调 listener，与取消 DownloadThreadRunnable 的行为一致
+     */
+    public void cancel() {
+        if (close(false)) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    closeQuietly(fileChannel);
+                    onFinished();
+                }
+            });
+        }
+    }
+
+    /**
+     * 在 executor 上打开文件、解析域名，完成后交给 selectorThread 注册
+     */
+    void start(final Runnable onPrepared) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (isFinished()) {
+                    return;
+                }
+                try {
+                    prepare();
+                } catch (MalformedURLException e) {
+                    fail(new DownloadException(DownloadException.CODE_EXCEPTION_URL_NULL, e.getMessage()));
+                    return;
+                } catch (IOException e) {
+                    fail(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
+                    return;
+                }
+                onPrepared.run();
+            }
+        });
+    }
+
+    private void prepare() throws IOException {
+        url = new URL(downloadInfo.getUrl());
+        host = url.getHost();
+        port = (-1 == url.getPort()) ? url.getDefaultPort() : url.getPort();
+        fileChannel = new RandomAccessFile(downloadInfo.getSavePath(), "rw").getChannel();
+        // 连接池中没有空闲连接时才会用到，提前在这里解析，selector 线程上不做 DNS 查询
+        address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new IOException("unknown host: " + host);
+        }
+    }
+
+    void register(Selector selector) {
+        if (isFinished()) {
+            return;
+        }
+        this.selector = selector;
+        this.selectorThread = Thread.currentThread();
+        try {
+            position = downloadThreadInfo.getStart() + downloadThreadInfo.getProgress();
+            checkpointPosition = position;
+            lastCheckpointTime = System.currentTimeMillis();
+            requestBuffer = ByteBuffer.wrap(HttpResponseHead.buildRangeRequest(url, config.getMethod(),
+                    (0 != downloadInfo.getSupportRanges()) ? position : -1,
+                    downloadThreadInfo.getEnd(), null != connectionPool));
+            readBuffer = ByteBuffer.wrap(config.getBufferPool().acquire(BUFFER_SIZE));
+            lastActiveTime = System.currentTimeMillis();
+
+            SocketChannel pooledChannel = (null != connectionPool) ? connectionPool.acquire(host, port) : null;
+            if (null != pooledChannel && reuse(pooledChannel, selector)) {
+                return;
+            }
+            connect(selector);
+        } catch (IOException e) {
+            fail(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
+        }
+    }
+
+    private boolean reuse(SocketChannel pooledChannel, Selector selector) throws IOException {
+        SelectionKey key = pooledChannel.keyFor(selector);
+        if (null != key && !key.isValid()) {
+            closeQuietly(pooledChannel);
+            return false;
+        }
+
+        socketChannel = pooledChannel;
+        isReused = true;
+        state = STATE_SENDING;
+        if (null == key) {
+            socketChannel.register(selector, SelectionKey.OP_WRITE, this);
+        } else {
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        return true;
+    }
+
+    private void connect(Selector selector) throws IOException {
+        isReused = false;
+        socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+        state = STATE_CONNECTING;
+        if (socketChannel.connect(address)) {
+            state = STATE_SENDING;
+            socketChannel.register(selector, SelectionKey.OP_WRITE, this);
+        } else {
+            socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /**
+     * 复用的连接可能已经被服务器关闭，在收到响应头之前出错时换一个新连接重试一次
+     */
+    private boolean reconnect(Selector selector) {
+        if (!isReused || STATE_READING_BODY == state) {
+            return false;
+        }
+
+        closeQuietly(socketChannel);
+        requestBuffer.rewind();
+        readBuffer.clear();
+        try {
+            connect(selector);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void onSelected(SelectionKey key) {
+        if (downloadInfo.isPause()) {
+            cancel();
+            return;
+        }
+
+        try {
+            if (key.isConnectable()) {
+                if (socketChannel.finishConnect()) {
+                    state = STATE_SENDING;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } else if (key.isWritable()) {
+                socketChannel.write(requestBuffer);
+                if (!requestBuffer.hasRemaining()) {
+                    state = STATE_READING_HEAD;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                read();
+            }
+            lastActiveTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            if (!reconnect(selector)) {
+                fail(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
+            }
+        } catch (DownloadException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 超出限速时暂停读取，等到预约的令牌可用后再恢复
+     */
+    private void throttle(int length) {
+        long waitNanos = config.getBandwidthLimiter().reserve(downloadInfo.getTaskId(), length);
+        SelectionKey key = socketChannel.keyFor(selector);
+        if (0 < waitNanos && null != key && key.isValid()) {
+            throttleUntil = System.nanoTime() + waitNanos;
+            key.interestOps(0);
+        }
+    }
+
+    /**
+     * @return 距离恢复读取还需要等待的纳秒数，没有被限速时返回 0
+     */
+    long checkThrottle(long nanoTime) {
+        if (0 == throttleUntil) {
+            return 0;
+        }
+        if (nanoTime < throttleUntil) {
+            return throttleUntil - nanoTime;
+        }
+
+        throttleUntil = 0;
+        lastActiveTime = System.currentTimeMillis();
+        SelectionKey key = socketChannel.keyFor(selector);
+        if (null != key && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        return 0;
+    }
+
+    void checkTimeout(long currentTime) {
+        if (0 != throttleUntil) {
+            return;
+        }
+        long timeout = (STATE_CONNECTING == state) ? config.getConnectTimeout() : config.getReadTimeout();
+        if (0 < timeout && timeout < (currentTime - lastActiveTime)) {
+            fail(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, "thread: " + downloadThreadInfo.getThreadId() + " timed out"));
+        }
+    }
+
+    /**
+     * 可以在任意线程调用，listener 在 executor 上回调
+     */
+    void fail(final DownloadException exception) {
+        if (close(false)) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onFailed(exception);
+                }
+            });
+        }
+    }
+
+    private void onFailed(DownloadException exception) {
+        closeQuietly(fileChannel);
+        try {
+            if (null != listener) {
+                listener.onDownloadFailed(downloadThreadInfo.getThreadId(), exception);
+            }
+        } finally {
+            onFinished();
+        }
+    }
+
+    private void onFinished() {
+        if (null != finishedCallback) {
+            finishedCallback.run();
+        }
+    }
+
+    private void succeed() {
+        // 正文刚好读完并且服务器允许 keep-alive 时连接放回连接池
+        boolean isReusable = (null != connectionPool) && (null != responseHead) && responseHead.isKeepAlive()
+                && (0 <= responseHead.getContentLength()) && (bodyLength == responseHead.getContentLength());
+        if (!close(isReusable)) {
+            return;
+        }
+
+        // 最后一次 force 之后才算成功
+        final long target = position;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileChannel.force(false);
+                    publishProgress(target);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    onFailed(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
+                    return;
+                }
+                closeQuietly(fileChannel);
+                try {
+                    if (null != listener) {
+                        listener.onDownloadSuccess(downloadThreadInfo.getThreadId());
+                    }
+                } finally {
+                    onFinished();
+                }
+            }
+        });
+    }
+
+    private void read() throws IOException {
+        if (STATE_READING_BODY == state) {
+            // 先登记要读的区间再读，读出来的数据不会因为被拆分而丢弃
+            long count = downloadThreadInfo.claim(position, readBuffer.capacity());
+            if (0 >= count) {
+                succeed();
+                return;
+            }
+            readBuffer.limit((int) count);
+        }
+        int length = socketChannel.read(readBuffer);
+        if (STATE_READING_HEAD == state) {
+            int headEnd = HttpResponseHead.findHeadEnd(readBuffer.array(), 0, readBuffer.position());
+            if (-1 == headEnd) {
+                if (-1 == length) {
+                    throw new IOException("connection closed before response head");
+                }
+                if (HttpResponseHead.MAX_HEAD_SIZE <= readBuffer.position()) {
+                    throw new IOException("response head too large");
+                }
+                return;
+            }
+
+            responseHead = HttpResponseHead.parse(readBuffer.array(), 0, headEnd);
+            checkResponse(responseHead);
+            state = STATE_READING_BODY;
+            readBuffer.flip();
+            readBuffer.position(headEnd);
+            writeBody();
+        } else {
+            readBuffer.flip();
+            writeBody();
+        }
+
+        // 分段还没写完连接就断开时按出错处理，由任务重试剩下的部分
+        if (-1 == length && !isFinished()) {
+            if (position <= downloadThreadInfo.getEnd()) {
+                throw new IOException("connection closed at " + position + ", segment end: " + downloadThreadInfo.getEnd());
+            }
+            succeed();
+        }
+    }
+
+    private void checkResponse(HttpResponseHead head) {
+        final int responseCode = head.getResponseCode();
+        if (HttpResponseHead.isServerBusy(responseCode)) {
+            throw new DownloadException(DownloadException.CODE_EXCEPTION_SERVER_BUSY, "server busy, response code: " + responseCode);
+        }
+        boolean isFromStart = (downloadThreadInfo.getStart() + downloadThreadInfo.getProgress()) == 0;
+        if (HttpURLConnection.HTTP_PARTIAL != responseCode
+                && !(HttpURLConnection.HTTP_OK == responseCode && (isFromStart || 0 == downloadInfo.getSupportRanges()))) {
+            throw new DownloadException(DownloadException.CODE_EXCEPTION_SERVER_ERR, "unsupported response code: " + responseCode);
+        }
+        if (head.isChunked()) {
+            throw new DownloadException(DownloadException.CODE_EXCEPTION_PROTOCOL, "chunked response is not supported");
+        }
+    }
+
+    private void writeBody() throws IOException {
+        // end 可能被其他分段拆走后半段而变小，登记之后拆分不会再拆走这些字节
+        bodyLength += readBuffer.remaining();
+        long count = downloadThreadInfo.claim(position, readBuffer.remaining());
+        readBuffer.limit(readBuffer.position() + (int) count);
+
+        int length = readBuffer.remaining();
+        while (readBuffer.hasRemaining()) {
+            position += fileChannel.write(readBuffer, position);
+        }
+        readBuffer.clear();
+
+        if (0 < length) {
+            throttle(length);
+        }
+
+        if (position > downloadThreadInfo.getEnd()) {
+            succeed();
+        } else if ((config.getCheckpointBytes() <= (position - checkpointPosition))
+                || ((checkpointPosition != position) && (config.getCheckpointInterval() <= (System.currentTimeMillis() - lastCheckpointTime)))) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * 在 executor 上 force 之后才更新进度，保证保存的进度之前的数据都已经落盘。
+     * selector 线程不等待 force，继续读写后面的数据
+     */
+    private void checkpoint() {
+        final long target = position;
+        checkpointPosition = target;
+        lastCheckpointTime = System.currentTimeMillis();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                // 已经结束时由结束的回调处理
+                if (isFinished()) {
+                    return;
+                }
+                try {
+                    fileChannel.force(false);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    fail(new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, e.getMessage()));
+                    return;
+                }
+                publishProgress(target);
+            }
+        });
+    }
+
+    private void publishProgress(long durablePosition) {
+        // 写入前已经登记过区间，拆分只会拆走 durablePosition 之后的部分
+        long progress = Math.min(durablePosition, downloadThreadInfo.getEnd() + 1) - downloadThreadInfo.getStart();
+        if (progress <= downloadThreadInfo.getProgress()) {
+            return;
+        }
+        downloadThreadInfo.setProgress(progress);
+        if (null != listener) {
+            listener.onProgress(downloadThreadInfo.getThreadId(), downloadThreadInfo.getProgress());
+        }
+    }
+
+    /**
+     * 同一个分段的任务在 executor 上按提交顺序逐个执行，executor 已经关闭时在当前线程执行
+     */
+    private void post(Runnable task) {
+        taskQueue.add(task);
+        if (!isTaskRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                runTasks();
+            }
+        };
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            drain.run();
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            while (null != (task = taskQueue.poll())) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            isTaskRunning.set(false);
+            // 放回标记之后又有新任务并且没有其他线程接手时继续执行
+            if (taskQueue.isEmpty() || !isTaskRunning.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private boolean close(boolean keepAlive) {
+        if (!isFinished.compareAndSet(false, true)) {
+            return false;
+        }
+
+        // 文件在 executor 上 force 之后关闭
+        // 其他线程取消时 selector 线程可能还在使用 readBuffer，只在 selector 线程上归还
+        if (null != readBuffer && Thread.currentThread() == selectorThread) {
+            config.getBufferPool().release(readBuffer.array());
+        }
+        if (null == socketChannel) {
+            return true;
+        }
+        if (keepAlive && socketChannel.isOpen()) {
+            SelectionKey key = (null != selector) ? socketChannel.keyFor(selector) : null;
+            if (null != key && key.isValid()) {
+                key.interestOps(0);
+                key.attach(null);
+            }
+            connectionPool.release(host, port, socketChannel);
+        } else {
+            closeQuietly(socketChannel);
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
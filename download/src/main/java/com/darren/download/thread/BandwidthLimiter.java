@@ -0,0 +1,185 @@
+package com.darren.download.thread;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶限速：支持全局限速、单个任务限速，以及全局限速下按权重分配带宽。
+ * 每次读取只做 CAS 预约令牌，不加锁；限速值可以在下载过程中随时修改。
+ */
+public class BandwidthLimiter {
+    public static final long UNLIMITED = 0;
+    public static final int DEFAULT_WEIGHT = 1;
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long ACTIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REBALANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final TokenBucket globalBucket;
+    /*
+     * 用户设置的限速和权重与运行时的令牌桶分开保存，释放运行时份额不会丢掉设置
+     */
+    private final ConcurrentHashMap<String, TaskConfig> taskConfigMap;
+    private final ConcurrentHashMap<String, TaskShare> taskShareMap;
+    private final AtomicLong lastRebalanceTime;
+
+    public BandwidthLimiter(long globalBytesPerSecond) {
+        this.globalBucket = new TokenBucket(globalBytesPerSecond);
+        this.taskConfigMap = new ConcurrentHashMap<>();
+        this.taskShareMap = new ConcurrentHashMap<>();
+        this.lastRebalanceTime = new AtomicLong(0);
+    }
+
+    public long getGlobalLimit() {
+        return globalBucket.bytesPerSecond;
+    }
+    public void setGlobalLimit(long bytesPerSecond) {
+        globalBucket.bytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+        rebalance(System.nanoTime());
+    }
+
+    public void setTaskLimit(String taskId, long bytesPerSecond) {
+        getTaskConfig(taskId).limit = Math.max(UNLIMITED, bytesPerSecond);
+        rebalance(System.nanoTime());
+    }
+
+    public void setTaskWeight(String taskId, int weight) {
+        getTaskConfig(taskId).weight = Math.max(1, weight);
+        rebalance(System.nanoTime());
+    }
+
+    /**
+     * 任务重试前调用，只释放运行时的份额，限速和权重设置保留到下一次下载
+     */
+    public void releaseTask(String taskId) {
+        if (null != taskShareMap.remove(taskId)) {
+            rebalance(System.nanoTime());
+        }
+    }
+
+    /**
+     * 任务删除、完成或最终失败时调用，连同限速和权重设置一起删除
+     */
+    public void removeTask(String taskId) {
+        taskConfigMap.remove(taskId);
+        releaseTask(taskId);
+    }
+
+    /**
+     * 预约 bytes 个字节的令牌
+     * @return 需要等待的纳秒数，0 表示可以直接继续
+     */
+    public long reserve(String taskId, int bytes) {
+        long currentTime = System.nanoTime();
+        long lastTime = lastRebalanceTime.get();
+        if ((REBALANCE_NANOS <= (currentTime - lastTime)) && lastRebalanceTime.compareAndSet(lastTime, currentTime)) {
+            rebalance(currentTime);
+        }
+
+        TaskShare taskShare = getTaskShare(taskId);
+        taskShare.lastActiveTime = currentTime;
+        return Math.max(globalBucket.reserve(bytes, currentTime), taskShare.bucket.reserve(bytes, currentTime));
+    }
+
+    public void acquire(String taskId, int bytes) throws InterruptedException {
+        long waitNanos = reserve(taskId, bytes);
+        if (0 < waitNanos) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private TaskConfig getTaskConfig(String taskId) {
+        TaskConfig taskConfig = taskConfigMap.get(taskId);
+        if (null == taskConfig) {
+            TaskConfig newConfig = new TaskConfig();
+            taskConfig = taskConfigMap.putIfAbsent(taskId, newConfig);
+            if (null == taskConfig) {
+                taskConfig = newConfig;
+            }
+        }
+        return taskConfig;
+    }
+
+    private TaskShare getTaskShare(String taskId) {
+        TaskShare taskShare = taskShareMap.get(taskId);
+        if (null == taskShare) {
+            TaskShare newShare = new TaskShare(getTaskConfig(taskId));
+            taskShare = taskShareMap.putIfAbsent(taskId, newShare);
+            if (null == taskShare) {
+                taskShare = newShare;
+                rebalance(System.nanoTime());
+            }
+        }
+        return taskShare;
+    }
+
+    /**
+     * 全局限速时，最近活跃的任务按权重分配全局带宽，再与任务自己的限速取较小值
+     */
+    private void rebalance(long currentTime) {
+        long globalLimit = globalBucket.bytesPerSecond;
+        long totalWeight = 0;
+        for (TaskShare taskShare : taskShareMap.values()) {
+            if (taskShare.isActive(currentTime)) {
+                totalWeight += taskShare.config.weight;
+            }
+        }
+
+        for (TaskShare taskShare : taskShareMap.values()) {
+            long rate = taskShare.config.limit;
+            int weight = taskShare.config.weight;
+            if (UNLIMITED != globalLimit) {
+                long share = globalLimit * weight / Math.max(totalWeight, weight);
+                rate = (UNLIMITED == rate) ? share : Math.min(rate, share);
+            }
+            taskShare.bucket.bytesPerSecond = rate;
+        }
+    }
+
+    private static class TaskConfig {
+        volatile long limit = UNLIMITED;
+        volatile int weight = DEFAULT_WEIGHT;
+    }
+
+    private static class TaskShare {
+        final TokenBucket bucket = new TokenBucket(UNLIMITED);
+        final TaskConfig config;
+        volatile long lastActiveTime = System.nanoTime();
+
+        TaskShare(TaskConfig config) {
+            this.config = config;
+        }
+
+        boolean isActive(long currentTime) {
+            return ACTIVE_NANOS > (currentTime - lastActiveTime);
+        }
+    }
+
+    private static class TokenBucket {
+        volatile long bytesPerSecond;
+        private final AtomicLong nextFreeTime;
+
+        TokenBucket(long bytesPerSecond) {
+            this.bytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+            this.nextFreeTime = new AtomicLong(System.nanoTime());
+        }
+
+        long reserve(int bytes, long currentTime) {
+            long rate = bytesPerSecond;
+            if (UNLIMITED == rate) {
+                return 0;
+            }
+
+            long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+            while (true) {
+                long freeTime = nextFreeTime.get();
+                // 空闲时最多积攒 BURST_NANOS 的令牌
+                long startTime = Math.max(freeTime, currentTime - BURST_NANOS);
+                if (nextFreeTime.compareAndSet(freeTime, startTime + cost)) {
+                    return Math.max(0, startTime + cost - currentTime);
+                }
+            }
+        }
+    }
+}
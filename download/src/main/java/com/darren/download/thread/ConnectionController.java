@@ -0,0 +1,82 @@
+package com.darren.download.thread;
+
+/**
+ * 根据实测吞吐量调整单个任务的连接数：从 1 个连接开始，吞吐量持续提升就继续加连接，
+ * 加连接不再有明显收益或者出现错误时回退，稳定一段时间后再重新尝试增加。
+ */
+public class ConnectionController {
+    private static final long WINDOW_TIME = 2000;
+    private static final long STABLE_TIME = 15000;
+    private static final float MIN_GAIN = 0.1f;
+
+    private final int maxConnections;
+    private int targetConnections = 1;
+    private boolean isGrowing = true;
+    private long windowStartTime;
+    private long windowStartProgress = -1;
+    private long lastThroughput;
+    private long stableStartTime;
+
+    public ConnectionController(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    public synchronized int getTargetConnections() {
+        return this.targetConnections;
+    }
+
+    public synchronized long getLastThroughput() {
+        return this.lastThroughput;
+    }
+
+    /**
+     * @param progress 任务当前已下载的总字节数
+     * @return 本次是否完成了一个统计窗口，目标连接数可能已经变化
+     */
+    public synchronized boolean onProgress(long progress) {
+        long currentTime = System.currentTimeMillis();
+        if (0 > windowStartProgress) {
+            windowStartTime = currentTime;
+            windowStartProgress = progress;
+            return false;
+        }
+
+        long elapsed = currentTime - windowStartTime;
+        if (WINDOW_TIME > elapsed) {
+            return false;
+        }
+
+        long throughput = (progress - windowStartProgress)*1000/elapsed;
+        windowStartTime = currentTime;
+        windowStartProgress = progress;
+
+        if (isGrowing) {
+            if ((0 == lastThroughput) || (throughput > lastThroughput*(1+MIN_GAIN))) {
+                if (targetConnections < maxConnections) {
+                    targetConnections++;
+                } else {
+                    isGrowing = false;
+                    stableStartTime = currentTime;
+                }
+            } else {
+                backOff(currentTime);
+            }
+        } else if ((STABLE_TIME <= (currentTime - stableStartTime)) && (targetConnections < maxConnections)) {
+            isGrowing = true;
+            targetConnections++;
+        }
+
+        lastThroughput = throughput;
+        return true;
+    }
+
+    public synchronized void onError() {
+        backOff(System.currentTimeMillis());
+    }
+
+    private void backOff(long currentTime) {
+        targetConnections = Math.max(1, targetConnections-1);
+        isGrowing = false;
+        stableStartTime = currentTime;
+    }
+}
@@ -7,27 +7,78 @@ import com.darren.download.DownloadInfo;
 import com.darren.download.DownloadStatus;
 import com.darren.download.DownloadThreadInfo;
 import com.darren.download.exception.DownloadException;
+import com.darren.download.file.BufferPool;
+import com.darren.download.file.MappedSegmentWriter;
+import com.darren.download.file.SegmentFileWriter;
+import com.darren.download.file.SegmentWriter;
+import com.darren.download.file.WriteBehindFileWriter;
 import com.darren.download.log.LogUtils;
+import com.darren.download.net.DownloadConnection;
+import com.darren.download.net.HttpResponseHead;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 public class DownloadThreadRunnable extends ThreadTask<Object> {
+    private static final long READ_SIZE_WINDOW = 500;
+    private static final long TRANSFER_CHUNK_SIZE = 256*1024;
+
     private final DownloadThreadListener listener;
     private final DownloadConfig config;
     private final DownloadInfo downloadInfo;
     private final DownloadThreadInfo downloadThreadInfo;
+    private final BufferPool bufferPool;
+    private final WriteBehindFileWriter writeBehindWriter;
+    private volatile boolean isCancelled;
 
     public DownloadThreadRunnable(DownloadInfo downloadInfo, DownloadThreadInfo downloadThreadInfo, DownloadConfig config, DownloadThreadListener listener) {
+        this(downloadInfo, downloadThreadInfo, config, null, listener);
+    }
+
+    /**
+     * @param writeBehindWriter 不为 null 时数据交给这个文件共用的后台写线程写入
+     */
+    public DownloadThreadRunnable(DownloadInfo downloadInfo, DownloadThreadInfo downloadThreadInfo, DownloadConfig config,
+                                  WriteBehindFileWriter writeBehindWriter, DownloadThreadListener listener) {
         this.downloadInfo = downloadInfo;
+        this.writeBehindWriter = writeBehindWriter;
         this.downloadThreadInfo = downloadThreadInfo;
         this.config = config;
         this.listener = listener;
+        this.bufferPool = config.getBufferPool();
+    }
+
+    public DownloadInfo getDownloadInfo() {
+        return this.downloadInfo;
+    }
+
+    public DownloadThreadInfo getDownloadThreadInfo() {
+        return this.downloadThreadInfo;
+    }
+
+    public DownloadConfig getConfig() {
+        return this.config;
+    }
+
+    public DownloadThreadListener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * 分段被任务取消时调用，之后的中断不再回调 listener
+     */
+    public void cancel() {
+        isCancelled = true;
     }
 
     @Override
@@ -37,13 +88,12 @@ public class DownloadThreadRunnable extends ThreadTask<Object> {
     }
 
     private void runDownload() {
-        HttpURLConnection httpURLConnection = null;
+        DownloadConnection connection = null;
+        SegmentWriter writer = null;
+        byte[] buffer = null;
+        boolean isReusable = false;
         try {
             final URL url = new URL(downloadInfo.getUrl());
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setConnectTimeout(config.getConnectTimeout());
-            httpURLConnection.setReadTimeout(config.getReadTimeout());
-            httpURLConnection.setRequestMethod(config.getMethod());
 
             LogUtils.logd(DownloadThreadRunnable.class.getSimpleName(), "runDownload "
                     + ", getUrl(): " + downloadThreadInfo.getUrl()
@@ -52,42 +102,80 @@ public class DownloadThreadRunnable extends ThreadTask<Object> {
             );
 
             long lastStart = downloadThreadInfo.getStart()+downloadThreadInfo.getProgress();
-            if (0 != downloadInfo.getSupportRanges()) {
-                httpURLConnection.setRequestProperty("Range", "bytes=" + lastStart + "-" + downloadThreadInfo.getEnd());
-            }
+            final long requestEnd = downloadThreadInfo.getEnd();
+            connection = config.getTransport().get(url, (0 != downloadInfo.getSupportRanges()) ? lastStart : -1, requestEnd, config);
 
-            final int responseCode = httpURLConnection.getResponseCode();
+            final int responseCode = connection.getResponseCode();
 
             if (HttpURLConnection.HTTP_PARTIAL == responseCode
                 || HttpURLConnection.HTTP_OK == responseCode
             ) {
-                InputStream inputStream = httpURLConnection.getInputStream();
-                RandomAccessFile file = new RandomAccessFile(downloadInfo.getSavePath(), "rwd");
-                file.seek(lastStart);
-
-                final byte[] buffer = new byte[4*1024];
-                int length = -1, offset = 0;
-                while (true) {
-                    hasPause();
-                    length = inputStream.read(buffer);
-                    if (-1 == length) {
-                        break;
+                ReadableByteChannel channel = config.isTransferFromChannel() ? connection.getChannel() : null;
+                if (null != channel) {
+                    isReusable = transferFromChannel(channel, lastStart, requestEnd);
+                } else {
+                    InputStream inputStream = connection.getInputStream();
+                    writer = createWriter(lastStart, requestEnd);
+
+                    buffer = bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+                    int length = -1;
+                    long windowStart = System.currentTimeMillis();
+                    long windowBytes = 0;
+                    while (true) {
+                        hasPause();
+                        // end 可能被其他分段拆走后半段而变小，先登记这次要读的区间
+                        int count = (int) downloadThreadInfo.claim(writer.getPosition(), buffer.length);
+                        if (0 >= count) {
+                            break;
+                        }
+                        length = inputStream.read(buffer, 0, count);
+                        if (-1 == length) {
+                            isReusable = true;
+                            break;
+                        }
+                        writer.write(buffer, 0, length);
+                        throttle(length);
+
+                        // 按最近的吞吐量调整单次读取大小，减少高速下载时的系统调用次数
+                        windowBytes += length;
+                        long currentTime = System.currentTimeMillis();
+                        if (READ_SIZE_WINDOW <= (currentTime - windowStart)) {
+                            int readSize = BufferPool.readSizeFor(windowBytes * 1000 / (currentTime - windowStart));
+                            if (readSize != buffer.length) {
+                                bufferPool.release(buffer);
+                                buffer = bufferPool.acquire(readSize);
+                            }
+                            windowStart = currentTime;
+                            windowBytes = 0;
+                        }
+
+                        if (writer.shouldCheckpoint()) {
+                            checkpoint(writer);
+                        }
                     }
-                    file.write(buffer, 0, length);
-                    offset += length;
-                    downloadThreadInfo.setProgress(lastStart+offset-downloadThreadInfo.getStart());
+                    updateProgress(writer.flush());
+                    checkComplete(writer.getPosition());
 
-                    if (null != listener) {
-                        listener.onProgress(downloadThreadInfo.getThreadId(), downloadThreadInfo.getProgress());
+                    // 请求的区间没有被拆分时正文已经读完，连接可以留给 keep-alive 复用
+                    if (!isReusable && (requestEnd == downloadThreadInfo.getEnd())) {
+                        isReusable = (-1 == inputStream.read());
                     }
                 }
 
-                inputStream.close();
-                file.close();
-
                 if (null != listener) {
                     listener.onDownloadSuccess(downloadThreadInfo.getThreadId());
                 }
+            } else if (null != listener) {
+                int code = HttpResponseHead.isServerBusy(responseCode)
+                        ? DownloadException.CODE_EXCEPTION_SERVER_BUSY : DownloadException.CODE_EXCEPTION_SERVER_ERR;
+                listener.onDownloadFailed(downloadThreadInfo.getThreadId(), new DownloadException(code, "response code: " + responseCode));
+            }
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            LogUtils.logd(DownloadThreadRunnable.class.getSimpleName(), "thread: " + downloadThreadInfo.getThreadId() + " has interrupted");
+            // 分段被取消或任务暂停时与暂停一样不回调，其他原因的中断按出错处理，任务不会一直停在下载中
+            if (!isCancelled && !downloadInfo.isPause() && null != listener) {
+                listener.onDownloadFailed(downloadThreadInfo.getThreadId(), new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR,
+                        "thread: " + downloadThreadInfo.getThreadId() + " has interrupted"));
             }
         } catch (MalformedURLException e) {
             if (null != listener) {
@@ -105,9 +193,124 @@ public class DownloadThreadRunnable extends ThreadTask<Object> {
             }
             e.printStackTrace();
         } finally {
-            if (null != httpURLConnection) {
-                httpURLConnection.disconnect();
+            bufferPool.release(buffer);
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (null != connection) {
+                if (isReusable) {
+                    connection.release();
+                } else {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 用 FileChannel.transferFrom 把正文从传输层的 channel 直接写入文件，不经过 byte[] 缓冲区
+     * @return 正文是否已经完整读完
+     */
+    private boolean transferFromChannel(ReadableByteChannel channel, long position, long requestEnd) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(downloadInfo.getSavePath(), "rw");
+        try {
+            FileChannel fileChannel = file.getChannel();
+            // 文件已经预分配，transferFrom 不能从文件末尾之后开始写
+            if (fileChannel.size() < position) {
+                throw new IOException("file size " + fileChannel.size() + " is less than position " + position);
             }
+
+            boolean isEnd = false;
+            long durablePosition = position;
+            long lastCheckpointTime = System.currentTimeMillis();
+            while (true) {
+                hasPause();
+                // end 可能被其他分段拆走后半段而变小，先登记这次要读的区间
+                long claimed = downloadThreadInfo.claim(position, TRANSFER_CHUNK_SIZE);
+                if (0 >= claimed) {
+                    break;
+                }
+                long count = fileChannel.transferFrom(channel, position, claimed);
+                if (0 >= count) {
+                    isEnd = true;
+                    break;
+                }
+                position += count;
+                throttle((int) count);
+
+                long currentTime = System.currentTimeMillis();
+                if ((config.getCheckpointBytes() <= (position - durablePosition))
+                        || (config.getCheckpointInterval() <= (currentTime - lastCheckpointTime))) {
+                    fileChannel.force(false);
+                    updateProgress(position);
+                    durablePosition = position;
+                    lastCheckpointTime = currentTime;
+                }
+            }
+            fileChannel.force(false);
+            updateProgress(position);
+            checkComplete(position);
+
+            if (!isEnd && (requestEnd == downloadThreadInfo.getEnd())) {
+                isEnd = (-1 == channel.read(ByteBuffer.allocate(1)));
+            }
+            return isEnd;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 连接在分段结束之前断开时按出错处理，已经落盘的进度保留，剩下的部分重新下载
+     */
+    private void checkComplete(long position) throws IOException {
+        if (position <= downloadThreadInfo.getEnd()) {
+            throw new IOException("connection closed at " + position + ", segment end: " + downloadThreadInfo.getEnd());
+        }
+    }
+
+    private SegmentWriter createWriter(long position, long end) throws IOException {
+        if (null != writeBehindWriter) {
+            return writeBehindWriter.open(position);
+        }
+        // 文件大小已知时才能按分段区间映射
+        if (config.isMmapWrite() && (0 < downloadInfo.getSize()) && (0 <= end) && (end < downloadInfo.getSize())) {
+            return new MappedSegmentWriter(downloadInfo.getSavePath(), position, end, config.getMmapWindowSize(),
+                    config.getCheckpointBytes(), config.getCheckpointInterval());
+        }
+        return new SegmentFileWriter(downloadInfo.getSavePath(), position, bufferPool, config.getWriteBufferSize(),
+                config.getCheckpointBytes(), config.getCheckpointInterval());
+    }
+
+    /**
+     * 数据 force 到存储后才更新进度，保证保存的进度之前的数据都已经落盘
+     */
+    private void checkpoint(SegmentWriter writer) throws IOException {
+        updateProgress(writer.checkpoint());
+    }
+
+    private void updateProgress(long position) {
+        // 读取前已经登记过区间，拆分只会拆走 position 之后的部分
+        long progress = Math.min(position, downloadThreadInfo.getEnd() + 1) - downloadThreadInfo.getStart();
+        if (progress == downloadThreadInfo.getProgress()) {
+            return;
+        }
+        downloadThreadInfo.setProgress(progress);
+
+        if (null != listener) {
+            listener.onProgress(downloadThreadInfo.getThreadId(), downloadThreadInfo.getProgress());
+        }
+    }
+
+    private void throttle(int length) throws InterruptedIOException {
+        try {
+            config.getBandwidthLimiter().acquire(downloadInfo.getTaskId(), length);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("thread: " + downloadThreadInfo.getThreadId() + " has interrupted");
         }
     }
 
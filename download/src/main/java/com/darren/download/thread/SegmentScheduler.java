@@ -0,0 +1,284 @@
+package com.darren.download.thread;
+
+import com.darren.download.nio.NioDownloadEngine;
+import com.darren.download.nio.NioSegmentTransfer;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 控制全局同时运行的分段下载数量，超出 allDownloadThreadNum 的分段在这里排队，
+ * 而不是堆积在线程池中。
+ * 同一个 host 同时运行的分段不超过 maxPerHost，host 已满的分段让给其他 host 的分段先运行。
+ * 分段在释放调度锁之后才启动，启动或取消时的回调不会在持有调度锁时进入 DownloadTask。
+ */
+public class SegmentScheduler {
+    private static final long HOST_BUSY_TIME = 30000;
+
+    private final ExecutorService executorService;
+    private final NioDownloadEngine nioDownloadEngine;
+    private final LinkedList<SegmentFuture> pendingList;
+    private final HashMap<String, Integer> hostRunningMap;
+    private final HashMap<String, HostPenalty> hostPenaltyMap;
+    private int maxRunning;
+    private int maxPerHost;
+    private int runningCount;
+    private long hostBusyTime = HOST_BUSY_TIME;
+
+    public SegmentScheduler(ExecutorService executorService, int maxRunning) {
+        this(executorService, null, maxRunning, maxRunning);
+    }
+
+    /**
+     * @param nioDownloadEngine 不为 null 时，引擎支持的分段交给 selector 线程下载，不占用线程池
+     */
+    public SegmentScheduler(ExecutorService executorService, NioDownloadEngine nioDownloadEngine, int maxRunning, int maxPerHost) {
+        if (0 >= maxRunning || 0 >= maxPerHost) {
+            throw new IllegalArgumentException("maxRunning and maxPerHost must bigger than 0");
+        }
+        this.executorService = executorService;
+        this.nioDownloadEngine = nioDownloadEngine;
+        this.maxRunning = maxRunning;
+        this.maxPerHost = maxPerHost;
+        this.pendingList = new LinkedList<>();
+        this.hostRunningMap = new HashMap<>();
+        this.hostPenaltyMap = new HashMap<>();
+    }
+
+    public static String getHost(String url) {
+        try {
+            String host = new URL(url).getHost();
+            return (null == host) ? "" : host.toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    public Future<Object> submit(DownloadThreadRunnable runnable) {
+        SegmentFuture future = new SegmentFuture(runnable);
+        synchronized (this) {
+            pendingList.add(future);
+        }
+        dispatch();
+        return future;
+    }
+
+    public synchronized int getMaxRunning() {
+        return this.maxRunning;
+    }
+    public void setMaxRunning(int maxRunning) {
+        if (0 >= maxRunning) {
+            throw new IllegalArgumentException("maxRunning must bigger than 0");
+        }
+        synchronized (this) {
+            this.maxRunning = maxRunning;
+        }
+        dispatch();
+    }
+
+    public synchronized int getRunningCount() {
+        return this.runningCount;
+    }
+
+    public synchronized int getPendingCount() {
+        return this.pendingList.size();
+    }
+
+    public synchronized int getMaxPerHost() {
+        return this.maxPerHost;
+    }
+    public void setMaxPerHost(int maxPerHost) {
+        if (0 >= maxPerHost) {
+            throw new IllegalArgumentException("maxPerHost must bigger than 0");
+        }
+        synchronized (this) {
+            this.maxPerHost = maxPerHost;
+        }
+        dispatch();
+    }
+
+    /**
+     * 测试时缩短 429/503 后降低并发的时间
+     */
+    synchronized void setHostBusyTime(long hostBusyTime) {
+        this.hostBusyTime = hostBusyTime;
+    }
+
+    public synchronized int getHostRunningCount(String host) {
+        Integer count = hostRunningMap.get(host);
+        return (null == count) ? 0 : count;
+    }
+
+    public synchronized boolean hasIdleSlot() {
+        return (runningCount + pendingList.size()) < maxRunning;
+    }
+
+    public synchronized boolean hasIdleSlot(String host) {
+        if (!hasIdleSlot()) {
+            return false;
+        }
+
+        int count = getHostRunningCount(host);
+        for (SegmentFuture future : pendingList) {
+            if (future.host.equals(host)) {
+                count++;
+            }
+        }
+        return count < getHostLimit(host, System.currentTimeMillis());
+    }
+
+    /**
+     * 服务器返回 429/503 时调用，在一段时间内把这个 host 的并发上限减 1
+     */
+    public synchronized void onHostBusy(String host) {
+        long currentTime = System.currentTimeMillis();
+        int limit = getHostLimit(host, currentTime);
+        HostPenalty penalty = new HostPenalty(Math.max(1, Math.min(limit, getHostRunningCount(host)) - 1), currentTime + hostBusyTime);
+        hostPenaltyMap.put(host, penalty);
+    }
+
+    private int getHostLimit(String host, long currentTime) {
+        HostPenalty penalty = hostPenaltyMap.get(host);
+        if (null == penalty) {
+            return maxPerHost;
+        }
+        if (currentTime >= penalty.expireTime) {
+            hostPenaltyMap.remove(host);
+            return maxPerHost;
+        }
+        return Math.min(maxPerHost, penalty.limit);
+    }
+
+    /**
+     * 不能在持有调度锁时调用
+     */
+    private void dispatch() {
+        for (SegmentFuture future : takeRunnable()) {
+            future.start();
+        }
+    }
+
+    /**
+     * 取出可以运行的分段并占用名额
+     */
+    private synchronized List<SegmentFuture> takeRunnable() {
+        List<SegmentFuture> runnableList = new ArrayList<>();
+        long currentTime = System.currentTimeMillis();
+        Iterator<SegmentFuture> iterator = pendingList.iterator();
+        while (runningCount < maxRunning && iterator.hasNext()) {
+            SegmentFuture future = iterator.next();
+            if (future.isCancelled()) {
+                iterator.remove();
+                continue;
+            }
+            if (getHostRunningCount(future.host) >= getHostLimit(future.host, currentTime)) {
+                continue;
+            }
+            iterator.remove();
+            runningCount++;
+            hostRunningMap.put(future.host, getHostRunningCount(future.host) + 1);
+            runnableList.add(future);
+        }
+        return runnableList;
+    }
+
+    private void onSegmentFinished(SegmentFuture future) {
+        synchronized (this) {
+            runningCount--;
+            int count = getHostRunningCount(future.host) - 1;
+            if (0 < count) {
+                hostRunningMap.put(future.host, count);
+            } else {
+                hostRunningMap.remove(future.host);
+            }
+        }
+        dispatch();
+    }
+
+    private synchronized void onCancelled(SegmentFuture future) {
+        pendingList.remove(future);
+    }
+
+    private class SegmentFuture extends FutureTask<Object> {
+        private final DownloadThreadRunnable runnable;
+        private final String host;
+        private volatile NioSegmentTransfer transfer;
+
+        SegmentFuture(DownloadThreadRunnable runnable) {
+            super(runnable);
+            this.runnable = runnable;
+            this.host = getHost(runnable.getDownloadInfo().getUrl());
+        }
+
+        void start() {
+            if ((null != nioDownloadEngine) && nioDownloadEngine.isSupported(runnable.getDownloadInfo())) {
+                startTransfer();
+            } else {
+                executorService.execute(this);
+            }
+        }
+
+        private void startTransfer() {
+            // 取出之后、启动之前被取消时直接释放名额
+            if (isCancelled()) {
+                onSegmentFinished(this);
+                return;
+            }
+            transfer = nioDownloadEngine.submit(runnable.getDownloadInfo(), runnable.getDownloadThreadInfo(),
+                    runnable.getConfig(), runnable.getListener(), new Runnable() {
+                        @Override
+                        public void run() {
+                            set(new Object());
+                            onSegmentFinished(SegmentFuture.this);
+                        }
+                    });
+            if (isCancelled()) {
+                transfer.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            // 名额在分段线程真正退出后才释放，cancel 只会中断线程
+            try {
+                super.run();
+            } finally {
+                onSegmentFinished(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            runnable.cancel();
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                onCancelled(this);
+                // 在调度锁外取消，结束回调会重新进入调度
+                NioSegmentTransfer transfer = this.transfer;
+                if (null != transfer) {
+                    transfer.cancel();
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    private static class HostPenalty {
+        final int limit;
+        final long expireTime;
+
+        HostPenalty(int limit, long expireTime) {
+            this.limit = limit;
+            this.expireTime = expireTime;
+        }
+    }
+}
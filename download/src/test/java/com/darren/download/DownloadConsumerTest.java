@@ -0,0 +1,71 @@
+package com.darren.download;
+
+import com.darren.download.exception.DownloadException;
+import com.darren.download.thread.BandwidthLimiter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DownloadConsumerTest {
+    private static final long HALF_SECOND = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private DownloadConfig config;
+    private DownloadQueue downloadQueue;
+    private DownloadConsumer downloadConsumer;
+
+    @Before
+    public void setUp() {
+        config = new DownloadConfig();
+        downloadQueue = new DownloadQueue(10);
+        // 没有线程池时不会从队列中取任务，只测试回调的处理
+        downloadConsumer = new DownloadConsumer(null, null, config, downloadQueue, null, null);
+    }
+
+    private static DownloadInfo createDownloadInfo(String taskId, int status) {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId(taskId);
+        downloadInfo.setUrl("http://127.0.0.1/" + taskId);
+        downloadInfo.setStatus(status);
+        return downloadInfo;
+    }
+
+    private boolean isLimited(String taskId) {
+        BandwidthLimiter bandwidthLimiter = config.getBandwidthLimiter();
+        bandwidthLimiter.reserve(taskId, 100);
+        return HALF_SECOND < bandwidthLimiter.reserve(taskId, 1000);
+    }
+
+    @Test
+    public void retryKeepsTaskLimit() {
+        DownloadInfo downloadInfo = createDownloadInfo("task", DownloadStatus.STATUS_RETRY);
+        config.getBandwidthLimiter().setTaskLimit("task", 1000);
+        downloadConsumer.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, "md5 err"));
+
+        assertTrue(downloadQueue.contains("task"));
+        assertTrue(isLimited("task"));
+    }
+
+    @Test
+    public void finalFailureRemovesTaskLimit() {
+        DownloadInfo downloadInfo = createDownloadInfo("task", DownloadStatus.STATUS_ERROR);
+        config.getBandwidthLimiter().setTaskLimit("task", 1000);
+        downloadConsumer.onFailed(downloadInfo, new DownloadException(DownloadException.CODE_EXCEPTION_IO_ERR, "io err"));
+
+        assertFalse(downloadQueue.contains("task"));
+        assertFalse(isLimited("task"));
+    }
+
+    @Test
+    public void successRemovesTaskLimit() {
+        DownloadInfo downloadInfo = createDownloadInfo("task", DownloadStatus.STATUS_DOWNLOADING);
+        config.getBandwidthLimiter().setTaskLimit("task", 1000);
+        downloadConsumer.onSuccess(downloadInfo);
+
+        assertEquals(DownloadStatus.STATUS_COMPLETED, downloadInfo.getStatus());
+        assertFalse(isLimited("task"));
+    }
+}
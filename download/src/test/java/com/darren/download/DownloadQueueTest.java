@@ -0,0 +1,69 @@
+package com.darren.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadQueueTest {
+    private static DownloadInfo createDownloadInfo(String taskId, int priority) {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId(taskId);
+        downloadInfo.setPriority(priority);
+        return downloadInfo;
+    }
+
+    @Test
+    public void takeByPriorityThenFifo() throws InterruptedException {
+        DownloadQueue downloadQueue = new DownloadQueue(10);
+        downloadQueue.offer(createDownloadInfo("low", -1));
+        downloadQueue.offer(createDownloadInfo("normal1", 0));
+        downloadQueue.offer(createDownloadInfo("high", 3));
+        downloadQueue.offer(createDownloadInfo("normal2", 0));
+
+        assertEquals("high", downloadQueue.take().getTaskId());
+        assertEquals("normal1", downloadQueue.take().getTaskId());
+        assertEquals("normal2", downloadQueue.take().getTaskId());
+        assertEquals("low", downloadQueue.take().getTaskId());
+        assertEquals(0, downloadQueue.size());
+    }
+
+    @Test
+    public void updatePriority() throws InterruptedException {
+        DownloadQueue downloadQueue = new DownloadQueue(10);
+        DownloadInfo first = createDownloadInfo("first", 0);
+        downloadQueue.offer(first);
+        downloadQueue.offer(createDownloadInfo("second", 0));
+
+        assertTrue(downloadQueue.updatePriority("second", 1));
+        assertFalse(downloadQueue.updatePriority("missing", 1));
+        assertEquals("second", downloadQueue.take().getTaskId());
+        assertEquals(0, first.getPriority());
+        assertSame(first, downloadQueue.take());
+    }
+
+    @Test
+    public void removeAndContains() throws InterruptedException {
+        DownloadQueue downloadQueue = new DownloadQueue(10);
+        downloadQueue.offer(createDownloadInfo("first", 0));
+        downloadQueue.offer(createDownloadInfo("second", 0));
+
+        assertTrue(downloadQueue.contains("first"));
+        assertTrue(downloadQueue.remove("first"));
+        assertFalse(downloadQueue.contains("first"));
+        assertFalse(downloadQueue.remove("first"));
+        assertEquals(1, downloadQueue.size());
+        assertEquals("second", downloadQueue.take().getTaskId());
+    }
+
+    @Test
+    public void rejectWhenFull() {
+        DownloadQueue downloadQueue = new DownloadQueue(2);
+        assertTrue(downloadQueue.offer(createDownloadInfo("first", 0)));
+        assertTrue(downloadQueue.offer(createDownloadInfo("second", 0)));
+        // 重复加入不占用容量
+        assertTrue(downloadQueue.offer(createDownloadInfo("second", 0)));
+        assertFalse(downloadQueue.offer(createDownloadInfo("third", 9)));
+        assertEquals(0, downloadQueue.remainingCapacity());
+        assertEquals(2, downloadQueue.toList().size());
+    }
+}
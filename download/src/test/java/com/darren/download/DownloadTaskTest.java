@@ -0,0 +1,168 @@
+package com.darren.download;
+
+import com.darren.download.exception.DownloadException;
+import com.darren.download.file.BlockManifest;
+import com.darren.download.thread.SegmentScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DownloadTaskTest {
+    private static final int FILE_SIZE = 4*1024*1024;
+    private static final int CHUNK_SIZE = 16*1024;
+
+    private HttpServer server;
+    private ExecutorService executorService;
+    private byte[] content;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(11).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0, end = content.length-1;
+                if (null != range) {
+                    String[] values = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(values[0]);
+                    if (1 < values.length) {
+                        end = Math.min(end, Integer.parseInt(values[1]));
+                    }
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+                    exchange.sendResponseHeaders(206, end-start+1);
+                } else {
+                    exchange.sendResponseHeaders(200, content.length);
+                }
+                // 慢速发送，让短的分段先完成再去拆分长的分段
+                OutputStream outputStream = exchange.getResponseBody();
+                try {
+                    for (int position = start; position <= end; position += CHUNK_SIZE) {
+                        outputStream.write(content, position, Math.min(CHUNK_SIZE, end-position+1));
+                        outputStream.flush();
+                        Thread.sleep(2);
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // 客户端拆分后提前断开
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        executorService = Executors.newCachedThreadPool();
+        file = File.createTempFile("task", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executorService.shutdownNow();
+        file.delete();
+        BlockManifest.getSidecarFile(file.getPath()).delete();
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void stealFromLongestSegment() throws Exception {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId("task");
+        downloadInfo.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/file");
+        downloadInfo.setSavePath(file.getAbsolutePath());
+        downloadInfo.setSupportRanges(1);
+        downloadInfo.setSize(FILE_SIZE);
+        downloadInfo.setFileMD5(md5(content));
+        int shortEnd = 64*1024 - 1;
+        downloadInfo.addDownloadThreadInfo(new DownloadThreadInfo("task", "short", downloadInfo.getUrl(), 0, shortEnd));
+        downloadInfo.addDownloadThreadInfo(new DownloadThreadInfo("task", "long", downloadInfo.getUrl(), shortEnd+1, FILE_SIZE-1));
+
+        DownloadConfig config = new DownloadConfig();
+        config.setMinSegmentSize(64*1024);
+        config.setCheckpointBytes(256*1024);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> result = new AtomicReference<>();
+        DownloadTask task = new DownloadTask(executorService, new SegmentScheduler(executorService, 4), downloadInfo, config, null,
+                new DownloadTaskListener() {
+                    @Override
+                    public void onUpdateProgress(DownloadInfo downloadInfo) {
+                    }
+
+                    @Override
+                    public void onSuccess(DownloadInfo downloadInfo) {
+                        result.set("success");
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailed(DownloadInfo downloadInfo, DownloadException exception) {
+                        result.set("failed " + exception.getCode() + " " + exception.getMessage());
+                        latch.countDown();
+                    }
+                });
+        assertEquals(DownloadStatus.STATUS_DOWNLOADING, task.start());
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertEquals("success", result.get());
+
+        // 短分段完成后从长分段拆出了新的分段，所有分段首尾相接，进度之和等于文件大小
+        List<DownloadThreadInfo> threadInfoList = new ArrayList<>(downloadInfo.getDownloadThreadInfoList().values());
+        assertTrue(2 < threadInfoList.size());
+        Collections.sort(threadInfoList, new Comparator<DownloadThreadInfo>() {
+            @Override
+            public int compare(DownloadThreadInfo threadInfo1, DownloadThreadInfo threadInfo2) {
+                return Long.compare(threadInfo1.getStart(), threadInfo2.getStart());
+            }
+        });
+        long expectedStart = 0;
+        for (DownloadThreadInfo threadInfo : threadInfoList) {
+            assertEquals(expectedStart, threadInfo.getStart());
+            assertEquals(threadInfo.getEnd() - threadInfo.getStart() + 1, threadInfo.getProgress());
+            expectedStart = threadInfo.getEnd() + 1;
+        }
+        assertEquals(FILE_SIZE, expectedStart);
+        assertEquals(FILE_SIZE, downloadInfo.getProgress());
+
+        byte[] data = new byte[FILE_SIZE];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        randomAccessFile.readFully(data);
+        randomAccessFile.close();
+        assertArrayEquals(content, data);
+    }
+}
@@ -0,0 +1,108 @@
+package com.darren.download;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class DownloadThreadInfoTest {
+    private static DownloadThreadInfo createThreadInfo(long start, long end) {
+        return new DownloadThreadInfo("task", "task_1", "http://127.0.0.1/task", start, end);
+    }
+
+    @Test
+    public void splitAtMinSizeBoundary() {
+        // 剩余刚好 2*minSize 时可以拆分
+        DownloadThreadInfo threadInfo = createThreadInfo(0, 199);
+        DownloadThreadInfo stolen = threadInfo.split("task_2", 100);
+        assertNotNull(stolen);
+        assertEquals(99, threadInfo.getEnd());
+        assertEquals(100, stolen.getStart());
+        assertEquals(199, stolen.getEnd());
+
+        // 少一个字节时不拆分
+        threadInfo = createThreadInfo(0, 199);
+        threadInfo.setProgress(1);
+        assertNull(threadInfo.split("task_2", 100));
+        assertEquals(199, threadInfo.getEnd());
+    }
+
+    @Test
+    public void splitOddRemaining() {
+        DownloadThreadInfo threadInfo = createThreadInfo(10, 20);
+        threadInfo.setProgress(2);
+        DownloadThreadInfo stolen = threadInfo.split("task_2", 1);
+
+        // 剩余 [12, 20] 共 9 个字节，拆开后首尾相接
+        assertEquals(threadInfo.getEnd() + 1, stolen.getStart());
+        assertEquals(20, stolen.getEnd());
+        assertEquals(9, threadInfo.getRemaining() + stolen.getRemaining());
+        assertEquals(0, stolen.getProgress());
+    }
+
+    @Test
+    public void splitAfterClaimedPosition() {
+        DownloadThreadInfo threadInfo = createThreadInfo(0, 999);
+        threadInfo.setProgress(100);
+        // 分段线程已经读到 900，还没有 checkpoint
+        assertEquals(800, threadInfo.claim(100, 800));
+        assertEquals(100, threadInfo.getUnclaimed());
+        assertEquals(900, threadInfo.getRemaining());
+
+        DownloadThreadInfo stolen = threadInfo.split("task_2", 10);
+        assertNotNull(stolen);
+        assertEquals(950, stolen.getStart());
+        assertEquals(949, threadInfo.getEnd());
+        // 已经读出的部分不够拆分时不拆
+        assertNull(threadInfo.split("task_3", 30));
+    }
+
+    @Test
+    public void claimStopsAtEnd() {
+        DownloadThreadInfo threadInfo = createThreadInfo(0, 99);
+        assertEquals(100, threadInfo.claim(0, 4096));
+        assertEquals(0, threadInfo.claim(100, 4096));
+        assertEquals(0, threadInfo.getUnclaimed());
+    }
+
+    @Test
+    public void splitWhileDownloading() throws InterruptedException {
+        final DownloadThreadInfo threadInfo = createThreadInfo(0, 10*1024*1024 - 1);
+        final AtomicLong writtenEnd = new AtomicLong(-1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long position = 0;
+                long count;
+                while (0 < (count = threadInfo.claim(position, 1000))) {
+                    position += count;
+                    // 模拟 checkpoint 落后于读取的位置
+                    if (0 == (position / 1000) % 64) {
+                        threadInfo.setProgress(position - 5000);
+                    }
+                }
+                writtenEnd.set(position - 1);
+            }
+        });
+        writer.start();
+
+        List<DownloadThreadInfo> stolenList = new ArrayList<>();
+        DownloadThreadInfo stolen;
+        while (writer.isAlive() && null != (stolen = threadInfo.split("task_" + (stolenList.size() + 2), 1000))) {
+            stolenList.add(stolen);
+        }
+        writer.join();
+
+        // 分段线程正好写到拆分后的 end，拆出的分段首尾相接，没有重叠
+        assertEquals(threadInfo.getEnd(), writtenEnd.get());
+        long expectedStart = threadInfo.getEnd() + 1;
+        for (int i = stolenList.size() - 1; 0 <= i; --i) {
+            assertEquals(expectedStart, stolenList.get(i).getStart());
+            expectedStart = stolenList.get(i).getEnd() + 1;
+        }
+        assertEquals(10*1024*1024, expectedStart);
+    }
+}
@@ -0,0 +1,144 @@
+package com.darren.download.db;
+
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CheckpointWriterTest {
+    private File journalFile;
+    private CountingController controller;
+
+    /**
+     * 记录每一次批量写入的任务数
+     */
+    private static class CountingController extends JournalDownloadController {
+        final List<Integer> batchSizeList = new ArrayList<>();
+
+        CountingController(File journalFile) throws IOException {
+            super(journalFile);
+        }
+
+        @Override
+        public synchronized void update(List<DownloadInfo> downloadInfoList) {
+            batchSizeList.add(downloadInfoList.size());
+            super.update(downloadInfoList);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = File.createTempFile("checkpoint", ".journal");
+        journalFile.delete();
+        controller = new CountingController(journalFile);
+    }
+
+    @After
+    public void tearDown() {
+        controller.close();
+        journalFile.delete();
+    }
+
+    private static DownloadInfo createDownloadInfo(String taskId) {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId(taskId);
+        downloadInfo.setUrl("http://127.0.0.1/" + taskId);
+        downloadInfo.setSavePath("/tmp/" + taskId);
+        downloadInfo.setSize(1000);
+        downloadInfo.setStatus(DownloadStatus.STATUS_DOWNLOADING);
+        return downloadInfo;
+    }
+
+    private DownloadInfo find(String taskId) {
+        for (DownloadInfo downloadInfo : controller.getAllDownloading()) {
+            if (taskId.equals(downloadInfo.getTaskId())) {
+                return downloadInfo;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void flushDirtyTasksInOneBatch() {
+        CheckpointWriter checkpointWriter = new CheckpointWriter(controller, 60000);
+        DownloadInfo first = createDownloadInfo("first");
+        DownloadInfo second = createDownloadInfo("second");
+        for (int i = 1; i <= 10; ++i) {
+            first.setProgress(i * 10);
+            second.setProgress(i * 20);
+            checkpointWriter.markDirty(first);
+            checkpointWriter.markDirty(second);
+        }
+        assertTrue(controller.getAllDownloading().isEmpty());
+
+        // 同一任务的多次进度只写最后一次
+        checkpointWriter.flush();
+        assertEquals(1, controller.batchSizeList.size());
+        assertEquals(2, (int) controller.batchSizeList.get(0));
+        assertEquals(100, find("first").getProgress());
+        assertEquals(200, find("second").getProgress());
+
+        checkpointWriter.flush();
+        assertEquals(1, controller.batchSizeList.size());
+        checkpointWriter.close();
+    }
+
+    @Test
+    public void flushOnInterval() throws InterruptedException {
+        CheckpointWriter checkpointWriter = new CheckpointWriter(controller, 20);
+        DownloadInfo downloadInfo = createDownloadInfo("task");
+        downloadInfo.setProgress(30);
+        checkpointWriter.markDirty(downloadInfo);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (null == find("task") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(30, find("task").getProgress());
+        checkpointWriter.close();
+    }
+
+    @Test
+    public void deleteDropsPendingProgress() {
+        CheckpointWriter checkpointWriter = new CheckpointWriter(controller, 60000);
+        DownloadInfo downloadInfo = createDownloadInfo("task");
+        checkpointWriter.update(downloadInfo);
+        downloadInfo.setProgress(50);
+        checkpointWriter.markDirty(downloadInfo);
+
+        // 删除之后关闭时的写入不会把任务重新插入
+        checkpointWriter.delete(downloadInfo);
+        checkpointWriter.close();
+        assertNull(find("task"));
+        // 只有最开始的一次 update
+        assertEquals(1, controller.batchSizeList.size());
+
+        // 关闭后不再接受新的进度
+        checkpointWriter.markDirty(downloadInfo);
+        checkpointWriter.flush();
+        assertNull(find("task"));
+    }
+
+    @Test
+    public void zeroIntervalWritesOnlyOnUpdate() {
+        CheckpointWriter checkpointWriter = new CheckpointWriter(controller, 0);
+        DownloadInfo downloadInfo = createDownloadInfo("task");
+        downloadInfo.setProgress(40);
+        checkpointWriter.markDirty(downloadInfo);
+        checkpointWriter.flush();
+        assertNull(find("task"));
+
+        checkpointWriter.update(downloadInfo);
+        assertEquals(40, find("task").getProgress());
+        checkpointWriter.close();
+    }
+}
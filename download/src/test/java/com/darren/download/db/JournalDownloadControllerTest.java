@@ -0,0 +1,191 @@
+package com.darren.download.db;
+
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadStatus;
+import com.darren.download.DownloadThreadInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JournalDownloadControllerTest {
+    private File journalFile;
+    private JournalDownloadController controller;
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = File.createTempFile("downloads", ".journal");
+        journalFile.delete();
+        controller = new JournalDownloadController(journalFile);
+    }
+
+    @After
+    public void tearDown() {
+        controller.close();
+        journalFile.delete();
+    }
+
+    private static DownloadInfo createDownloadInfo(String taskId, long createAt, int threadNum) {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId(taskId);
+        downloadInfo.setCreateAt(createAt);
+        downloadInfo.setUrl("http://127.0.0.1/" + taskId);
+        downloadInfo.setSavePath("/tmp/" + taskId);
+        downloadInfo.setSize(threadNum * 100);
+        downloadInfo.setStatus(DownloadStatus.STATUS_DOWNLOADING);
+        downloadInfo.setFileMD5("0123456789abcdef0123456789abcdef");
+        for (int i = 0; i < threadNum; ++i) {
+            downloadInfo.addDownloadThreadInfo(new DownloadThreadInfo(taskId, taskId + "_" + i, downloadInfo.getUrl(), i * 100, i * 100 + 99));
+        }
+        return downloadInfo;
+    }
+
+    private void reopen() throws IOException {
+        controller.close();
+        controller = new JournalDownloadController(journalFile);
+    }
+
+    @Test
+    public void restoreAfterReopen() throws IOException {
+        DownloadInfo first = createDownloadInfo("first", 1, 2);
+        DownloadInfo second = createDownloadInfo("second", 2, 3);
+        DownloadInfo completed = createDownloadInfo("completed", 3, 1);
+        completed.setStatus(DownloadStatus.STATUS_COMPLETED);
+        controller.update(first);
+        controller.update(second);
+        controller.update(completed);
+
+        DownloadThreadInfo threadInfo = second.getDownloadThreadInfoList().get("second_1");
+        threadInfo.setProgress(150);
+        controller.update(threadInfo);
+        second.setProgress(50);
+        second.setStatus(DownloadStatus.STATUS_PAUSED);
+        second.setPriority(5);
+        controller.update(second);
+        reopen();
+
+        List<DownloadInfo> downloadInfoList = controller.getAllDownloading();
+        assertEquals(2, downloadInfoList.size());
+        // 与 SQLite 实现一样按创建时间倒序，不包含已完成的任务
+        DownloadInfo restored = downloadInfoList.get(0);
+        assertEquals("second", restored.getTaskId());
+        assertEquals("first", downloadInfoList.get(1).getTaskId());
+        assertEquals(50, restored.getProgress());
+        assertEquals(DownloadStatus.STATUS_PAUSED, restored.getStatus());
+        assertEquals(5, restored.getPriority());
+        assertEquals(0, downloadInfoList.get(1).getPriority());
+        assertEquals(second.getUrl(), restored.getUrl());
+        assertEquals(second.getFileMD5(), restored.getFileMD5());
+        assertEquals(3, restored.getDownloadThreadInfoList().size());
+        assertEquals(150, restored.getDownloadThreadInfoList().get("second_1").getProgress());
+        assertEquals(199, restored.getDownloadThreadInfoList().get("second_1").getEnd());
+    }
+
+    @Test
+    public void restoreInPages() {
+        for (int i = 0; i < 7; ++i) {
+            controller.update(createDownloadInfo("task" + i, i % 3, 1));
+        }
+
+        List<DownloadInfo> allList = controller.getAllDownloading();
+        DownloadInfo last = null;
+        int index = 0;
+        List<DownloadInfo> pageList;
+        while (!(pageList = controller.getDownloading(last, 3)).isEmpty()) {
+            for (DownloadInfo downloadInfo : pageList) {
+                assertEquals(allList.get(index++).getTaskId(), downloadInfo.getTaskId());
+            }
+            last = pageList.get(pageList.size() - 1);
+        }
+        assertEquals(7, index);
+    }
+
+    @Test
+    public void deleteRemovesSegments() throws IOException {
+        DownloadInfo downloadInfo = createDownloadInfo("task", 1, 2);
+        controller.update(downloadInfo);
+        controller.delete(downloadInfo.getDownloadThreadInfoList().get("task_0"));
+        reopen();
+        assertEquals(1, controller.getAllDownloading().get(0).getDownloadThreadInfoList().size());
+
+        controller.delete(downloadInfo);
+        reopen();
+        assertTrue(controller.getAllDownloading().isEmpty());
+
+        // 重新加入同名任务时不会带回旧的分段
+        controller.update(createDownloadInfo("task", 1, 0));
+        reopen();
+        assertTrue(controller.getAllDownloading().get(0).getDownloadThreadInfoList().isEmpty());
+    }
+
+    @Test
+    public void verifiedDigest() throws IOException {
+        controller.update(new VerifiedDigest("/tmp/file", 10, 20, 30, "abc"));
+        reopen();
+        VerifiedDigest verifiedDigest = controller.getVerifiedDigest("/tmp/file");
+        assertNotNull(verifiedDigest);
+        assertEquals(10, verifiedDigest.getSize());
+        assertEquals("abc", verifiedDigest.getDigest());
+
+        controller.deleteVerifiedDigest("/tmp/file");
+        reopen();
+        assertNull(controller.getVerifiedDigest("/tmp/file"));
+    }
+
+    @Test
+    public void dropTornRecord() throws IOException {
+        DownloadInfo downloadInfo = createDownloadInfo("task", 1, 1);
+        controller.update(downloadInfo);
+        controller.close();
+
+        // 模拟写到一半时进程退出
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[] {4, 0, 0, 0, 100, 1, 2, 3});
+        out.close();
+        long tornLength = journalFile.length();
+
+        controller = new JournalDownloadController(journalFile);
+        assertEquals(tornLength - 8, journalFile.length());
+        assertEquals(1, controller.getAllDownloading().size());
+
+        downloadInfo.setProgress(60);
+        controller.update(downloadInfo);
+        reopen();
+        assertEquals(60, controller.getAllDownloading().get(0).getProgress());
+    }
+
+    @Test
+    public void compactInBackground() throws Exception {
+        DownloadInfo downloadInfo = createDownloadInfo("task", 1, 4);
+        controller.update(downloadInfo);
+        long initialLength = journalFile.length();
+
+        DownloadThreadInfo threadInfo = downloadInfo.getDownloadThreadInfoList().get("task_2");
+        for (int i = 1; i <= 20000; ++i) {
+            threadInfo.setProgress(200 + i % 100);
+            controller.update(threadInfo);
+        }
+
+        // 每条进度记录 33 字节，不压缩时日志会一直增长
+        long uncompactedLength = initialLength + 20000 * 33;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journalFile.length() > uncompactedLength / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(journalFile.length() <= uncompactedLength / 2);
+
+        threadInfo.setProgress(299);
+        controller.update(threadInfo);
+        reopen();
+        DownloadInfo restored = controller.getAllDownloading().get(0);
+        assertEquals(4, restored.getDownloadThreadInfoList().size());
+        assertEquals(299, restored.getDownloadThreadInfoList().get("task_2").getProgress());
+    }
+}
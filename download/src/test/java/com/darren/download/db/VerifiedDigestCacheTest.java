@@ -0,0 +1,102 @@
+package com.darren.download.db;
+
+import com.darren.download.file.BufferPool;
+import com.darren.download.file.IntegrityAlgorithm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VerifiedDigestCacheTest {
+    private File journalFile;
+    private File file;
+    private JournalDownloadController controller;
+    private VerifiedDigestCache cache;
+    private BufferPool bufferPool;
+    private String md5;
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = File.createTempFile("digest", ".journal");
+        journalFile.delete();
+        controller = new JournalDownloadController(journalFile);
+        cache = new VerifiedDigestCache();
+        cache.attach(controller);
+        bufferPool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+
+        byte[] content = new byte[10000];
+        new Random(5).nextBytes(content);
+        file = File.createTempFile("digest", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        // 修改时间离校验时间足够远，缓存才可信
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 60000));
+        md5 = IntegrityAlgorithm.MD5.digestFile(file, bufferPool);
+    }
+
+    @After
+    public void tearDown() {
+        controller.close();
+        journalFile.delete();
+        file.delete();
+    }
+
+    @Test
+    public void cacheVerifiedDigest() {
+        assertFalse(cache.isVerified(file, md5));
+        assertTrue(cache.verify(file, md5, IntegrityAlgorithm.MD5, bufferPool));
+        assertTrue(cache.isVerified(file, md5));
+        assertTrue(cache.isVerified(file, md5.toUpperCase()));
+        assertFalse(cache.isVerified(file, "0123456789abcdef0123456789abcdef"));
+
+        cache.remove(file.getPath());
+        assertFalse(cache.isVerified(file, md5));
+    }
+
+    @Test
+    public void rejectMismatchedDigest() {
+        assertFalse(cache.verify(file, "0123456789abcdef0123456789abcdef", IntegrityAlgorithm.MD5, bufferPool));
+        assertNull(controller.getVerifiedDigest(file.getAbsolutePath()));
+    }
+
+    @Test
+    public void invalidateWhenFileChanged() throws IOException {
+        cache.put(file, md5);
+        assertTrue(cache.isVerified(file, md5));
+
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertFalse(cache.isVerified(file, md5));
+
+        cache.put(file, md5);
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 60000));
+        assertFalse(cache.isVerified(file, md5));
+    }
+
+    @Test
+    public void distrustRecentModification() {
+        // 修改时间与校验时间在同一时间片内，不能确认校验后没有被改写
+        assertTrue(file.setLastModified(System.currentTimeMillis()));
+        cache.put(file, md5);
+        assertFalse(cache.isVerified(file, md5));
+        assertTrue(cache.verify(file, md5, IntegrityAlgorithm.MD5, bufferPool));
+    }
+
+    @Test
+    public void detached() {
+        cache.put(file, md5);
+        cache.detach();
+        assertFalse(cache.isVerified(file, md5));
+        assertTrue(cache.verify(file, md5, IntegrityAlgorithm.MD5, bufferPool));
+    }
+}
@@ -0,0 +1,142 @@
+package com.darren.download.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockManifestTest {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int FILE_SIZE = BLOCK_SIZE*3 + 100;
+
+    private byte[] content;
+    private File file;
+    private BufferPool bufferPool;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(3).nextBytes(content);
+        file = File.createTempFile("blocks", ".bin");
+        write(0, content, FILE_SIZE);
+        bufferPool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        BlockManifest.getSidecarFile(file.getPath()).delete();
+    }
+
+    private void write(long position, byte[] data, int length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(position);
+            randomAccessFile.write(data, (int) position, length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void corrupt(long position) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(position);
+            randomAccessFile.write(~content[(int) position]);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private String[] blockHashes(IntegrityAlgorithm algorithm) {
+        String[] hashes = new String[BlockManifest.getBlockCount(BLOCK_SIZE, FILE_SIZE)];
+        for (int i = 0; i < hashes.length; ++i) {
+            IntegrityAlgorithm.Digest digest = algorithm.newDigest();
+            int start = i*BLOCK_SIZE;
+            digest.update(content, start, Math.min(FILE_SIZE, start + BLOCK_SIZE) - start);
+            hashes[i] = digest.finish();
+        }
+        return hashes;
+    }
+
+    @Test
+    public void blockBounds() {
+        BlockManifest blockManifest = BlockManifest.createLocal(BLOCK_SIZE, FILE_SIZE);
+        assertEquals(4, blockManifest.getBlockCount());
+        assertEquals(BLOCK_SIZE*3, blockManifest.getBlockStart(3));
+        assertEquals(BLOCK_SIZE-1, blockManifest.getBlockEnd(0, FILE_SIZE));
+        // 最后一块不满 blockSize
+        assertEquals(FILE_SIZE-1, blockManifest.getBlockEnd(3, FILE_SIZE));
+    }
+
+    @Test
+    public void repairSuppliedBadBlock() throws IOException {
+        BlockManifest blockManifest = new BlockManifest(BLOCK_SIZE, blockHashes(IntegrityAlgorithm.MD5));
+        PrefixHasher prefixHasher = new PrefixHasher(file.getPath(), bufferPool, blockManifest, FILE_SIZE);
+        String expected = IntegrityAlgorithm.MD5.digestFile(file, bufferPool);
+
+        corrupt(BLOCK_SIZE*2 + 10);
+        // 分两次更新，跨越块边界
+        prefixHasher.update(BLOCK_SIZE + 7);
+        assertNotEquals(expected, prefixHasher.finish(FILE_SIZE));
+        assertEquals(Collections.singletonList(2), prefixHasher.getBadBlockList());
+
+        // 只重新写入损坏的块
+        long start = blockManifest.getBlockStart(2);
+        write(start, content, (int) (blockManifest.getBlockEnd(2, FILE_SIZE) - start + 1));
+        prefixHasher.reset();
+        assertEquals(expected, prefixHasher.finish(FILE_SIZE));
+        assertTrue(prefixHasher.getBadBlockList().isEmpty());
+    }
+
+    @Test
+    public void localManifestFindsLaterCorruption() throws IOException {
+        BlockManifest blockManifest = BlockManifest.createLocal(BLOCK_SIZE, FILE_SIZE);
+        PrefixHasher prefixHasher = new PrefixHasher(file.getPath(), bufferPool, blockManifest, FILE_SIZE);
+        prefixHasher.finish(FILE_SIZE);
+        assertTrue(prefixHasher.getBadBlockList().isEmpty());
+        assertArrayEquals(blockHashes(IntegrityAlgorithm.CRC32C), hashesOf(blockManifest));
+
+        // 保存后重新加载，写入之后损坏的块可以被发现
+        File sidecarFile = BlockManifest.getSidecarFile(file.getPath());
+        blockManifest.save(sidecarFile);
+        BlockManifest loaded = BlockManifest.load(sidecarFile, FILE_SIZE);
+        assertNotNull(loaded);
+        assertFalse(loaded.isSupplied());
+        assertSame(IntegrityAlgorithm.CRC32C, loaded.getAlgorithm());
+        assertArrayEquals(hashesOf(blockManifest), hashesOf(loaded));
+
+        corrupt(0);
+        corrupt(FILE_SIZE - 1);
+        prefixHasher = new PrefixHasher(file.getPath(), bufferPool, loaded, FILE_SIZE);
+        prefixHasher.finish(FILE_SIZE);
+        assertEquals(Arrays.asList(0, 3), prefixHasher.getBadBlockList());
+    }
+
+    @Test
+    public void loadRejectsMismatchedSize() throws IOException {
+        BlockManifest blockManifest = new BlockManifest(BLOCK_SIZE, blockHashes(IntegrityAlgorithm.MD5));
+        File sidecarFile = BlockManifest.getSidecarFile(file.getPath());
+        blockManifest.save(sidecarFile);
+
+        assertNull(BlockManifest.load(sidecarFile, FILE_SIZE + BLOCK_SIZE));
+        assertNull(BlockManifest.load(new File(file.getPath() + ".missing"), FILE_SIZE));
+        assertTrue(BlockManifest.load(sidecarFile, FILE_SIZE).isSupplied());
+    }
+
+    private static String[] hashesOf(BlockManifest blockManifest) {
+        String[] hashes = new String[blockManifest.getBlockCount()];
+        for (int i = 0; i < hashes.length; ++i) {
+            hashes[i] = blockManifest.getHash(i);
+        }
+        return hashes;
+    }
+}
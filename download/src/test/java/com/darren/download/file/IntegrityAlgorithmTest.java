@@ -0,0 +1,85 @@
+package com.darren.download.file;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntegrityAlgorithmTest {
+    private static final byte[] CHECK_INPUT = "123456789".getBytes();
+
+    @Test
+    public void crc32cCheckValue() {
+        Crc32c crc32c = new Crc32c();
+        crc32c.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+        assertEquals(0xe3069283L, crc32c.getValue());
+
+        crc32c.reset();
+        for (byte b : CHECK_INPUT) {
+            crc32c.update(b);
+        }
+        assertEquals(0xe3069283L, crc32c.getValue());
+    }
+
+    @Test
+    public void crc32cSplitUpdates() {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        Crc32c whole = new Crc32c();
+        whole.update(data, 0, data.length);
+
+        // 拆成不按 8 字节对齐的几段，结果与一次计算相同
+        Crc32c split = new Crc32c();
+        split.update(data, 0, 3);
+        split.update(data, 3, 500);
+        split.update(data, 503, data.length - 503);
+        assertEquals(whole.getValue(), split.getValue());
+    }
+
+    @Test
+    public void checkValues() {
+        assertEquals("e3069283", digest(IntegrityAlgorithm.CRC32C, CHECK_INPUT));
+        assertEquals("25f9e794323b453885f5181f1b624d0b", digest(IntegrityAlgorithm.MD5, CHECK_INPUT));
+        assertEquals("15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225",
+                digest(IntegrityAlgorithm.SHA256, CHECK_INPUT));
+    }
+
+    @Test
+    public void forName() {
+        assertSame(IntegrityAlgorithm.MD5, IntegrityAlgorithm.forName(null));
+        assertSame(IntegrityAlgorithm.SHA256, IntegrityAlgorithm.forName("SHA-256"));
+        assertSame(IntegrityAlgorithm.CRC32C, IntegrityAlgorithm.forName("crc32c"));
+        try {
+            IntegrityAlgorithm.forName("sha-1");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 不认识的算法
+        }
+    }
+
+    @Test
+    public void digestFile() throws IOException {
+        File file = File.createTempFile("integrity", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(CHECK_INPUT);
+            out.close();
+
+            String digest = IntegrityAlgorithm.SHA256.digestFile(file, new BufferPool(1024*1024));
+            assertTrue(IntegrityAlgorithm.SHA256.matches(digest, digest(IntegrityAlgorithm.SHA256, CHECK_INPUT).toUpperCase()));
+            assertNull(IntegrityAlgorithm.MD5.digestFile(new File(file.getPath() + ".missing"), BufferPool.getDefault()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String digest(IntegrityAlgorithm algorithm, byte[] data) {
+        IntegrityAlgorithm.Digest digest = algorithm.newDigest();
+        digest.update(data, 0, data.length);
+        return digest.finish();
+    }
+}
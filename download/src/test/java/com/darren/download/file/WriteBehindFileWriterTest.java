@@ -0,0 +1,74 @@
+package com.darren.download.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindFileWriterTest {
+    private static final int SEGMENT_SIZE = 100*1024 + 3;
+
+    private File file;
+    private BufferPool bufferPool;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("writebehind", ".bin");
+        bufferPool = new BufferPool(1024*1024);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void flushAndCloseRoundTrip() throws IOException {
+        byte[] content = new byte[SEGMENT_SIZE * 2];
+        new Random(3).nextBytes(content);
+        WriteBehindFileWriter writeBehindWriter = new WriteBehindFileWriter(file.getAbsolutePath(), bufferPool,
+                BufferPool.MIN_BUFFER_SIZE, 4, 1024*1024, 60000);
+
+        // 两个分段交替写入，写线程按位置合并
+        SegmentWriter first = writeBehindWriter.open(0);
+        SegmentWriter second = writeBehindWriter.open(SEGMENT_SIZE);
+        for (int offset = 0; offset < SEGMENT_SIZE; offset += 1000) {
+            int length = Math.min(1000, SEGMENT_SIZE - offset);
+            first.write(content, offset, length);
+            second.write(content, SEGMENT_SIZE + offset, length);
+        }
+        assertEquals(SEGMENT_SIZE, first.getPosition());
+
+        assertEquals(SEGMENT_SIZE, first.flush());
+        assertEquals(SEGMENT_SIZE * 2, second.flush());
+        assertEquals(SEGMENT_SIZE, first.getDurablePosition());
+        first.close();
+        second.close();
+
+        byte[] result = new byte[content.length];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        randomAccessFile.readFully(result);
+        randomAccessFile.close();
+        assertArrayEquals(content, result);
+    }
+
+    @Test
+    public void checkpointOnlyAfterThreshold() throws IOException {
+        WriteBehindFileWriter writeBehindWriter = new WriteBehindFileWriter(file.getAbsolutePath(), bufferPool,
+                BufferPool.MIN_BUFFER_SIZE, 4, 1024*1024, 60000);
+        SegmentWriter writer = writeBehindWriter.open(0);
+        writer.write(new byte[100], 0, 100);
+        // 数据还没落盘也没到间隔，不需要上报进度
+        assertFalse(writer.shouldCheckpoint());
+
+        assertEquals(100, writer.flush());
+        assertFalse(writer.shouldCheckpoint());
+        writer.close();
+    }
+}
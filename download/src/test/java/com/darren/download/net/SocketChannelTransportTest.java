@@ -0,0 +1,285 @@
+package com.darren.download.net;
+
+import com.darren.download.DownloadConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SocketChannelTransportTest {
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private ServerSocket serverSocket;
+    private final BlockingQueue<Response> responseQueue = new LinkedBlockingQueue<>();
+    private final List<String> requestList = new CopyOnWriteArrayList<>();
+    private final AtomicInteger acceptCount = new AtomicInteger();
+    private DownloadConfig config;
+
+    /**
+     * 按顺序返回的原始响应，head 和 body 分开写时 body 晚一点到达
+     */
+    private static class Response {
+        final byte[] head;
+        final byte[] body;
+        final boolean isClose;
+
+        Response(String head, String body, boolean isClose) {
+            this.head = head.getBytes(CHARSET);
+            this.body = (null == body) ? null : body.getBytes(CHARSET);
+            this.isClose = isClose;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        config = new DownloadConfig();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        acceptCount.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            while (true) {
+                String request = readRequest(inputStream);
+                if (null == request) {
+                    break;
+                }
+                requestList.add(request.substring(0, request.indexOf("\r\n")));
+                Response response = responseQueue.poll(5, TimeUnit.SECONDS);
+                if (null == response) {
+                    break;
+                }
+                outputStream.write(response.head);
+                outputStream.flush();
+                if (null != response.body) {
+                    Thread.sleep(50);
+                    outputStream.write(response.body);
+                    outputStream.flush();
+                }
+                if (response.isClose) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // 客户端断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String readRequest(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int b;
+        while (-1 != (b = inputStream.read())) {
+            outputStream.write(b);
+            byte[] data = outputStream.toByteArray();
+            if (-1 != HttpResponseHead.findHeadEnd(data, 0, data.length)) {
+                return new String(data, CHARSET);
+            }
+        }
+        return null;
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+    }
+
+    private static String readBody(ReadableByteChannel channel, int bufferSize) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (-1 != channel.read(buffer)) {
+            buffer.flip();
+            outputStream.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        return new String(outputStream.toByteArray(), CHARSET);
+    }
+
+    @Test
+    public void parseHead() throws IOException {
+        byte[] data = ("HTTP/1.1 206 Partial Content\r\nContent-Length: 10\r\ncontent-range: bytes 0-9/100\r\n"
+                + "X-Empty:\r\n\r\nbody").getBytes(CHARSET);
+        int headEnd = HttpResponseHead.findHeadEnd(data, 0, data.length);
+        assertEquals(data.length - "body".length(), headEnd);
+        assertEquals(-1, HttpResponseHead.findHeadEnd(data, 0, headEnd - 1));
+
+        HttpResponseHead head = HttpResponseHead.parse(data, 0, headEnd);
+        assertEquals(206, head.getResponseCode());
+        assertEquals(10, head.getContentLength());
+        assertEquals("bytes 0-9/100", head.getHeaderField("Content-Range"));
+        assertEquals("", head.getHeaderField("x-empty"));
+        assertTrue(head.isKeepAlive());
+        assertFalse(head.isChunked());
+
+        data = "HTTP/1.0 200 OK\r\nContent-Length: abc\r\nTransfer-Encoding: Chunked\r\n\r\n".getBytes(CHARSET);
+        head = HttpResponseHead.parse(data, 0, data.length);
+        assertEquals(-1, head.getContentLength());
+        assertFalse(head.isKeepAlive());
+        assertTrue(head.isChunked());
+
+        data = "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n".getBytes(CHARSET);
+        assertFalse(HttpResponseHead.parse(data, 0, data.length).isKeepAlive());
+    }
+
+    @Test
+    public void parseBadStatusLine() {
+        byte[] data = "ICY 200 OK\r\n\r\n".getBytes(CHARSET);
+        try {
+            HttpResponseHead.parse(data, 0, data.length);
+            fail();
+        } catch (IOException e) {
+            // 不是 HTTP 响应
+        }
+    }
+
+    @Test
+    public void bodyReadWithHead() throws IOException {
+        ConnectionPool connectionPool = new ConnectionPool(5, 30000);
+        SocketChannelTransport transport = new SocketChannelTransport(connectionPool);
+        // 正文和响应头在同一次写入中到达，先从 headBuffer 中读出
+        responseQueue.add(new Response("HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello world", null, false));
+
+        DownloadConnection connection = transport.get(url("/a"), -1, -1, config);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("hello world", readBody(connection.getChannel(), 4));
+        connection.release();
+        assertEquals(1, connectionPool.getIdleCount());
+    }
+
+    @Test
+    public void bodyLimitedByContentLength() throws IOException {
+        ConnectionPool connectionPool = new ConnectionPool(5, 30000);
+        SocketChannelTransport transport = new SocketChannelTransport(connectionPool);
+        // 多出来的字节不属于正文，连接也不能再复用
+        responseQueue.add(new Response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhelloEXTRA", null, false));
+        DownloadConnection connection = transport.get(url("/a"), -1, -1, config);
+        assertEquals("hello", readBody(connection.getChannel(), 64));
+        connection.release();
+        assertEquals(0, connectionPool.getIdleCount());
+
+        // 正文在响应头之后从 socket 读取时同样只读 Content-Length 个字节
+        responseQueue.add(new Response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n", "helloEXTRA", true));
+        connection = transport.get(url("/b"), -1, -1, config);
+        assertEquals("hello", readBody(connection.getChannel(), 64));
+        connection.close();
+    }
+
+    @Test
+    public void bodyShorterThanContentLength() throws IOException {
+        SocketChannelTransport transport = new SocketChannelTransport(null);
+        responseQueue.add(new Response("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n", "hello", true));
+        DownloadConnection connection = transport.get(url("/a"), -1, -1, config);
+        try {
+            readBody(connection.getChannel(), 64);
+            fail();
+        } catch (IOException e) {
+            // 正文没有读够 Content-Length 连接就断开了
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void retryClosedPooledConnection() throws IOException {
+        ConnectionPool connectionPool = new ConnectionPool(5, 30000);
+        SocketChannelTransport transport = new SocketChannelTransport(connectionPool);
+        // 服务器回完第一个请求后关闭连接，但响应头里没有声明 Connection: close
+        responseQueue.add(new Response("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", null, true));
+        DownloadConnection connection = transport.get(url("/a"), -1, -1, config);
+        assertEquals("ok", readBody(connection.getChannel(), 64));
+        connection.release();
+        assertEquals(1, connectionPool.getIdleCount());
+
+        responseQueue.add(new Response("HTTP/1.1 206 Partial Content\r\nContent-Length: 2\r\n\r\nk2", null, false));
+        connection = transport.get(url("/b"), 0, 1, config);
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("k2", readBody(connection.getChannel(), 64));
+        connection.release();
+        assertEquals(2, acceptCount.get());
+        assertEquals(1, connectionPool.getHitCount());
+    }
+
+    @Test
+    public void followRedirect() throws IOException {
+        ConnectionPool connectionPool = new ConnectionPool(5, 30000);
+        SocketChannelTransport transport = new SocketChannelTransport(connectionPool);
+        responseQueue.add(new Response("HTTP/1.1 302 Found\r\nLocation: /b\r\nContent-Length: 0\r\n\r\n", null, false));
+        responseQueue.add(new Response("HTTP/1.1 206 Partial Content\r\nContent-Length: 4\r\n\r\nbody", null, false));
+
+        DownloadConnection connection = transport.get(url("/a"), 0, 3, config);
+        assertEquals(206, connection.getResponseCode());
+        assertNotNull(connection.getChannel());
+        assertEquals("body", readBody(connection.getChannel(), 64));
+        connection.release();
+        assertEquals("GET /a HTTP/1.1", requestList.get(0));
+        assertEquals("GET /b HTTP/1.1", requestList.get(1));
+        // 没有正文的重定向响应之后连接被复用
+        assertEquals(1, acceptCount.get());
+    }
+
+    @Test
+    public void tooManyRedirects() throws IOException {
+        SocketChannelTransport transport = new SocketChannelTransport(null);
+        for (int i = 0; i < 10; ++i) {
+            responseQueue.add(new Response("HTTP/1.1 301 Moved Permanently\r\nLocation: /a\r\nContent-Length: 0\r\n\r\n", null, true));
+        }
+        try {
+            transport.get(url("/a"), -1, -1, config);
+            fail();
+        } catch (ProtocolException e) {
+            // 重定向循环
+        }
+    }
+}
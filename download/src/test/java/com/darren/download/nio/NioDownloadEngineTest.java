@@ -0,0 +1,281 @@
+package com.darren.download.nio;
+
+import com.darren.download.DownloadConfig;
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadThreadInfo;
+import com.darren.download.exception.DownloadException;
+import com.darren.download.net.ConnectionPool;
+import com.darren.download.thread.DownloadThreadListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NioDownloadEngineTest {
+    private static final int FILE_SIZE = 3*1024*1024 + 17;
+
+    private HttpServer server;
+    private NioDownloadEngine engine;
+    private byte[] content;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(7).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0, end = content.length-1;
+                if (null != range) {
+                    String[] values = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(values[0]);
+                    if (1 < values.length) {
+                        end = Math.min(end, Integer.parseInt(values[1]));
+                    }
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+                    exchange.sendResponseHeaders(206, end-start+1);
+                } else {
+                    exchange.sendResponseHeaders(200, content.length);
+                }
+                OutputStream outputStream = exchange.getResponseBody();
+                outputStream.write(content, start, end-start+1);
+                outputStream.close();
+            }
+        });
+        server.start();
+
+        engine = new NioDownloadEngine(2);
+        file = File.createTempFile("nio", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        server.stop(0);
+        file.delete();
+    }
+
+    @Test
+    public void downloadSegments() throws Exception {
+        downloadAndVerify(engine, 4);
+    }
+
+    @Test
+    public void reuseKeepAliveConnections() throws Exception {
+        ConnectionPool connectionPool = new ConnectionPool(2, 30000);
+        NioDownloadEngine pooledEngine = new NioDownloadEngine(1, connectionPool);
+        try {
+            downloadAndVerify(pooledEngine, 1);
+            downloadAndVerify(pooledEngine, 1);
+        } finally {
+            pooledEngine.shutdown();
+        }
+
+        assertEquals(1, connectionPool.getHitCount());
+        assertEquals(1, connectionPool.getMissCount());
+    }
+
+    @Test
+    public void failWhenConnectionClosedEarly() throws Exception {
+        // 返回完整的 Content-Length，但只写一半正文就断开
+        final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.getInputStream().read(new byte[4096]);
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(("HTTP/1.1 206 Partial Content\r\nContent-Length: 1000\r\n"
+                            + "Content-Range: bytes 0-999/1000\r\n\r\n").getBytes("US-ASCII"));
+                    outputStream.write(content, 0, 500);
+                    outputStream.flush();
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.start();
+
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId("nio");
+        downloadInfo.setUrl("http://127.0.0.1:" + serverSocket.getLocalPort() + "/file");
+        downloadInfo.setSavePath(file.getAbsolutePath());
+        downloadInfo.setSupportRanges(1);
+        downloadInfo.setSize(1000);
+        DownloadThreadInfo threadInfo = new DownloadThreadInfo("nio", "nio_0", downloadInfo.getUrl(), 0, 999);
+        downloadInfo.addDownloadThreadInfo(threadInfo);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> result = new AtomicReference<>();
+        engine.submit(downloadInfo, threadInfo, new DownloadConfig(), new DownloadThreadListener() {
+            @Override
+            public void onProgress(String threadId, long progress) {
+            }
+
+            @Override
+            public void onDownloadSuccess(String threadId) {
+                result.set("success");
+            }
+
+            @Override
+            public void onDownloadFailed(String threadId, DownloadException exception) {
+                result.set("failed " + exception.getCode());
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        serverSocket.close();
+        assertEquals("failed " + DownloadException.CODE_EXCEPTION_IO_ERR, result.get());
+        // 最后一次 force 之后的数据不算进度
+        assertTrue(500 >= threadInfo.getProgress());
+    }
+
+    @Test
+    public void slowCallbackDoesNotBlockSelector() throws Exception {
+        NioDownloadEngine singleEngine = new NioDownloadEngine(1);
+        try {
+            DownloadInfo downloadInfo = new DownloadInfo();
+            downloadInfo.setTaskId("nio");
+            downloadInfo.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/file");
+            downloadInfo.setSavePath(file.getAbsolutePath());
+            downloadInfo.setSupportRanges(1);
+            downloadInfo.setSize(FILE_SIZE);
+            DownloadThreadInfo small = new DownloadThreadInfo("nio", "small", downloadInfo.getUrl(), 0, 99);
+            DownloadThreadInfo large = new DownloadThreadInfo("nio", "large", downloadInfo.getUrl(), 100, FILE_SIZE-1);
+            downloadInfo.addDownloadThreadInfo(small);
+            downloadInfo.addDownloadThreadInfo(large);
+
+            final CountDownLatch largeDone = new CountDownLatch(1);
+            final CountDownLatch finished = new CountDownLatch(2);
+            final AtomicReference<String> result = new AtomicReference<>("");
+            DownloadThreadListener listener = new DownloadThreadListener() {
+                @Override
+                public void onProgress(String threadId, long progress) {
+                    checkThread();
+                }
+
+                @Override
+                public void onDownloadSuccess(String threadId) {
+                    checkThread();
+                    if ("large".equals(threadId)) {
+                        largeDone.countDown();
+                        return;
+                    }
+                    // 小分段的回调一直等到大分段下载完，回调不在 selector 线程上时才不会卡住大分段
+                    try {
+                        if (!largeDone.await(10, TimeUnit.SECONDS)) {
+                            result.set("selector blocked");
+                        }
+                    } catch (InterruptedException e) {
+                        result.set("interrupted");
+                    }
+                }
+
+                @Override
+                public void onDownloadFailed(String threadId, DownloadException exception) {
+                    result.set("failed " + threadId + " " + exception.getCode());
+                }
+
+                private void checkThread() {
+                    if (Thread.currentThread().getName().matches("NioDownloadEngine_\\d+")) {
+                        result.set("callback on selector thread");
+                    }
+                }
+            };
+            Runnable finishedCallback = new Runnable() {
+                @Override
+                public void run() {
+                    finished.countDown();
+                }
+            };
+            singleEngine.submit(downloadInfo, small, new DownloadConfig(), listener, finishedCallback);
+            singleEngine.submit(downloadInfo, large, new DownloadConfig(), listener, finishedCallback);
+
+            assertTrue(finished.await(30, TimeUnit.SECONDS));
+            assertEquals("", result.get());
+            assertEquals(100, small.getProgress());
+            assertEquals(FILE_SIZE-100, large.getProgress());
+        } finally {
+            singleEngine.shutdown();
+        }
+    }
+
+    private void downloadAndVerify(NioDownloadEngine engine, final int segments) throws Exception {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId("nio");
+        downloadInfo.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/file");
+        downloadInfo.setSavePath(file.getAbsolutePath());
+        downloadInfo.setSupportRanges(1);
+        downloadInfo.setSize(FILE_SIZE);
+
+        final long average = FILE_SIZE/segments;
+        final CountDownLatch latch = new CountDownLatch(segments);
+        final AtomicInteger successCount = new AtomicInteger(0);
+        DownloadThreadListener listener = new DownloadThreadListener() {
+            @Override
+            public void onProgress(String threadId, long progress) {
+            }
+
+            @Override
+            public void onDownloadSuccess(String threadId) {
+                successCount.incrementAndGet();
+            }
+
+            @Override
+            public void onDownloadFailed(String threadId, DownloadException exception) {
+            }
+        };
+
+        for (int i = 0; i < segments; ++i) {
+            long start = average*i;
+            long end = (i == segments-1) ? FILE_SIZE-1 : start+average-1;
+            DownloadThreadInfo threadInfo = new DownloadThreadInfo("nio", "nio_" + i, downloadInfo.getUrl(), start, end);
+            downloadInfo.addDownloadThreadInfo(threadInfo);
+            engine.submit(downloadInfo, threadInfo, new DownloadConfig(), listener, new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(segments, successCount.get());
+
+        byte[] result = new byte[FILE_SIZE];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        randomAccessFile.readFully(result);
+        randomAccessFile.close();
+        assertArrayEquals(content, result);
+    }
+}
@@ -0,0 +1,72 @@
+package com.darren.download.thread;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BandwidthLimiterTest {
+    private static final long HALF_SECOND = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void unlimitedByDefault() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+        assertEquals(0, bandwidthLimiter.reserve("task", 10*1024*1024));
+        assertEquals(0, bandwidthLimiter.reserve("task", 10*1024*1024));
+    }
+
+    @Test
+    public void taskLimit() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+        bandwidthLimiter.setTaskLimit("task", 1000);
+        bandwidthLimiter.reserve("task", 100);
+        // 1000 字节需要约 1 秒的令牌
+        assertTrue(HALF_SECOND < bandwidthLimiter.reserve("task", 1000));
+        // 其他任务不受影响
+        assertEquals(0, bandwidthLimiter.reserve("other", 1000));
+    }
+
+    @Test
+    public void globalLimitSharedByWeight() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(3000);
+        bandwidthLimiter.setTaskWeight("heavy", 2);
+        bandwidthLimiter.reserve("heavy", 1);
+        bandwidthLimiter.reserve("light", 1);
+
+        // light 只分到 1000 字节每秒，heavy 分到 2000
+        long lightWait = bandwidthLimiter.reserve("light", 1000);
+        assertTrue(HALF_SECOND < lightWait);
+    }
+
+    @Test
+    public void removeTaskReleasesShare() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+        bandwidthLimiter.setTaskLimit("task", 1000);
+        bandwidthLimiter.reserve("task", 1000);
+        bandwidthLimiter.removeTask("task");
+        // 重新加入时按默认的不限速处理
+        assertEquals(0, bandwidthLimiter.reserve("task", 1000));
+    }
+
+    @Test
+    public void releaseTaskKeepsConfig() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+        bandwidthLimiter.setTaskLimit("task", 1000);
+        bandwidthLimiter.reserve("task", 1000);
+        bandwidthLimiter.releaseTask("task");
+        // 重试时重新建立份额，仍然按设置的限速
+        bandwidthLimiter.reserve("task", 100);
+        assertTrue(HALF_SECOND < bandwidthLimiter.reserve("task", 1000));
+    }
+
+    @Test
+    public void limitBeforeFirstReserve() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+        bandwidthLimiter.reserve("task", 100);
+        // 已经有份额的任务修改限速后立即生效
+        bandwidthLimiter.setTaskLimit("task", 1000);
+        bandwidthLimiter.reserve("task", 100);
+        assertTrue(HALF_SECOND < bandwidthLimiter.reserve("task", 1000));
+    }
+}
@@ -0,0 +1,201 @@
+package com.darren.download.thread;
+
+import com.darren.download.DownloadConfig;
+import com.darren.download.DownloadInfo;
+import com.darren.download.DownloadThreadInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SegmentSchedulerTest {
+    private ExecutorService executorService;
+    private final DownloadConfig config = new DownloadConfig();
+    /* 分段执行时从这里取许可，测试控制分段什么时候结束 */
+    private final Semaphore finishPermits = new Semaphore(0);
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final AtomicInteger maxRunningCount = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> hostRunningMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> hostMaxRunningMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CountDownLatch> hostStartedMap = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        finishPermits.release(100);
+        executorService.shutdownNow();
+    }
+
+    /**
+     * 不访问网络，阻塞到测试放行，并记录同时运行的数量
+     */
+    private class BlockingRunnable extends DownloadThreadRunnable {
+        private final String host;
+
+        BlockingRunnable(String host, DownloadInfo downloadInfo, DownloadThreadInfo downloadThreadInfo) {
+            super(downloadInfo, downloadThreadInfo, config, null);
+            this.host = host;
+        }
+
+        @Override
+        protected Object execute() {
+            updateMax(maxRunningCount, runningCount.incrementAndGet());
+            updateMax(counter(hostMaxRunningMap, host), counter(hostRunningMap, host).incrementAndGet());
+            CountDownLatch latch = hostStartedMap.get(host);
+            if (null != latch) {
+                latch.countDown();
+            }
+            try {
+                finishPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                counter(hostRunningMap, host).decrementAndGet();
+                runningCount.decrementAndGet();
+            }
+            return new Object();
+        }
+    }
+
+    private static AtomicInteger counter(ConcurrentHashMap<String, AtomicInteger> map, String host) {
+        AtomicInteger counter = map.get(host);
+        if (null == counter) {
+            map.putIfAbsent(host, new AtomicInteger());
+            counter = map.get(host);
+        }
+        return counter;
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 重试
+        }
+    }
+
+    private Future<Object> submit(SegmentScheduler scheduler, String host) {
+        DownloadInfo downloadInfo = new DownloadInfo();
+        downloadInfo.setTaskId(host);
+        downloadInfo.setUrl("http://" + host + "/file");
+        DownloadThreadInfo downloadThreadInfo = new DownloadThreadInfo(host, host, downloadInfo.getUrl(), 0, 99);
+        return scheduler.submit(new BlockingRunnable(host, downloadInfo, downloadThreadInfo));
+    }
+
+    private static void waitFor(SegmentScheduler scheduler, String host, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count != scheduler.getHostRunningCount(host) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.getHostRunningCount(host));
+    }
+
+    @Test
+    public void neverExceedLimits() throws Exception {
+        SegmentScheduler scheduler = new SegmentScheduler(executorService, null, 4, 2);
+        List<Future<Object>> futureList = new ArrayList<>();
+        String[] hosts = {"a.test", "b.test", "c.test"};
+        for (int i = 0; i < 4; ++i) {
+            for (String host : hosts) {
+                futureList.add(submit(scheduler, host));
+            }
+        }
+        assertEquals(4, scheduler.getRunningCount());
+        assertEquals(8, scheduler.getPendingCount());
+
+        // 一个一个放行，每次结束都会重新调度
+        for (int i = 0; i < futureList.size(); ++i) {
+            assertTrue(scheduler.getRunningCount() <= 4);
+            for (String host : hosts) {
+                assertTrue(scheduler.getHostRunningCount(host) <= 2);
+            }
+            finishPermits.release();
+            Thread.sleep(5);
+        }
+        for (Future<Object> future : futureList) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(4, maxRunningCount.get());
+        for (String host : hosts) {
+            assertTrue(counter(hostMaxRunningMap, host).get() <= 2);
+        }
+        assertEquals(0, scheduler.getPendingCount());
+        waitFor(scheduler, "a.test", 0);
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void saturatedHostDoesNotBlockOthers() throws Exception {
+        SegmentScheduler scheduler = new SegmentScheduler(executorService, null, 4, 2);
+        List<Future<Object>> futureList = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            futureList.add(submit(scheduler, "a.test"));
+        }
+        assertEquals(2, scheduler.getHostRunningCount("a.test"));
+        assertEquals(2, scheduler.getPendingCount());
+        assertFalse(scheduler.hasIdleSlot("a.test"));
+
+        // a.test 排队的分段不挡住后提交的 b.test
+        hostStartedMap.put("b.test", new CountDownLatch(2));
+        futureList.add(submit(scheduler, "b.test"));
+        futureList.add(submit(scheduler, "b.test"));
+        assertTrue(hostStartedMap.get("b.test").await(5, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getHostRunningCount("a.test"));
+        assertEquals(2, scheduler.getHostRunningCount("b.test"));
+        assertEquals(4, scheduler.getRunningCount());
+        assertEquals(2, scheduler.getPendingCount());
+
+        finishPermits.release(futureList.size());
+        for (Future<Object> future : futureList) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(2, counter(hostMaxRunningMap, "a.test").get());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void hostPenaltyExpires() throws Exception {
+        SegmentScheduler scheduler = new SegmentScheduler(executorService, null, 8, 3);
+        scheduler.setHostBusyTime(300);
+        for (int i = 0; i < 3; ++i) {
+            submit(scheduler, "a.test");
+        }
+        waitFor(scheduler, "a.test", 3);
+
+        // 429/503 之后并发上限从 3 降到 2
+        scheduler.onHostBusy("a.test");
+        finishPermits.release();
+        waitFor(scheduler, "a.test", 2);
+        submit(scheduler, "a.test");
+        assertEquals(1, scheduler.getPendingCount());
+        assertEquals(2, scheduler.getHostRunningCount("a.test"));
+        assertFalse(scheduler.hasIdleSlot("a.test"));
+
+        // 惩罚过期后恢复 maxPerHost，下一次调度时排队的分段开始运行
+        Thread.sleep(400);
+        submit(scheduler, "a.test");
+        assertEquals(3, scheduler.getHostRunningCount("a.test"));
+        assertEquals(1, scheduler.getPendingCount());
+
+        // 其他 host 不受影响
+        submit(scheduler, "b.test");
+        assertEquals(1, scheduler.getHostRunningCount("b.test"));
+    }
+}